@@ -27,6 +27,7 @@ public final class Constants {
     public static final String PK_NAME_STORED = "_p_key";
     public static final String PK_NAME_DOC_VAL = "_p_key_val";
     public static final String CF_TS_DOC_VAL = "_cf_ts_val";
+    public static final String TOKEN_DOC_VAL = "_token_val";
     public static final String CF_TS_INDEXED = "_cf_ts";
 
     //lucene options per field
@@ -57,6 +57,10 @@ public class Fields {
         return atomicReader.getNumericDocValues(CF_TS_DOC_VAL);
     }
 
+    public static BinaryDocValues getTokenDocValues(AtomicReader atomicReader) throws IOException {
+        return atomicReader.getBinaryDocValues(TOKEN_DOC_VAL);
+    }
+
     public static ByteBuffer rowKey(BinaryDocValues rowKeyValues, int docId) throws IOException {
         BytesRef ref = new BytesRef();
         rowKeyValues.get(docId, ref);
@@ -70,7 +74,7 @@ public class Fields {
     }
 
     public static Field idDocValues(final AbstractType abstractType, final ByteBuffer byteBufferValue) {
-        BytesRef bytesRef = new BytesRef(byteBufferValue.array(), byteBufferValue.arrayOffset(), byteBufferValue.limit());
+        BytesRef bytesRef = new BytesRef(byteBufferValue.array(), byteBufferValue.arrayOffset() + byteBufferValue.position(), byteBufferValue.remaining());
         return new SortedDocValuesField(PK_NAME_DOC_VAL, bytesRef) {
             @Override
             public String toString() {
@@ -89,6 +93,22 @@ public class Fields {
         };
     }
 
+    public static Field tokenDocValues(final ByteBuffer token) {
+        BytesRef bytesRef = new BytesRef(ByteBufferUtil.getArray(token));
+        return new BinaryDocValuesField(TOKEN_DOC_VAL, bytesRef) {
+            @Override
+            public String toString() {
+                return String.format("Token BinaryDocValuesField<%s>", ByteBufferUtil.bytesToHex(token));
+            }
+        };
+    }
+
+    /**
+     * The primary key name as a term, so that the documents of a CQL row can be deleted and replaced by idTerm.
+     */
+    public static Field pkNameIndexed(String pkName) {
+        return new StringField(PK_NAME_STORED, pkName, Field.Store.NO);
+    }
 
     public static Field rowKeyIndexed(String rkValue) {
         return new StringField(RK_NAME_INDEXED, rkValue, Field.Store.NO);
@@ -235,7 +255,7 @@ public class Fields {
 
 
     private static Field docValueField(String name, final AbstractType abstractType, final ByteBuffer byteBufferValue) {
-        BytesRef bytesRef = new BytesRef(byteBufferValue.array(), byteBufferValue.arrayOffset(), byteBufferValue.limit());
+        BytesRef bytesRef = new BytesRef(byteBufferValue.array(), byteBufferValue.arrayOffset() + byteBufferValue.position(), byteBufferValue.remaining());
         final String stripedName = striped + name;
         return new BinaryDocValuesField(stripedName, bytesRef) {
             @Override
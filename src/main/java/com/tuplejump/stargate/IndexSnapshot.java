@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate;
+
+import com.tuplejump.stargate.cassandra.IndexingQueue;
+import com.tuplejump.stargate.cassandra.RowIndexSupport;
+import com.tuplejump.stargate.lucene.Indexer;
+import com.tuplejump.stargate.lucene.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable view of the indexers of a RowIndex, published as a whole whenever the ring changes
+ * or the index is invalidated, so that the write and read paths take no locks.
+ * Every user holds a reference for the duration of its call. The RowIndex holds one more till the snapshot is replaced.
+ * Indexers dropped by the replacement are removed only once the last reference to the old snapshot is released.
+ */
+class IndexSnapshot {
+    protected static final Logger logger = LoggerFactory.getLogger(IndexSnapshot.class);
+
+    static final IndexSnapshot EMPTY = new IndexSnapshot(null, null, TokenRouter.EMPTY, Collections.<Indexer, IndexingQueue>emptyMap());
+
+    final Options options;
+    final RowIndexSupport rowIndexSupport;
+    final TokenRouter router;
+    final Map<Indexer, IndexingQueue> indexingQueues;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private volatile Collection<Indexer> retired = Collections.emptyList();
+
+    IndexSnapshot(Options options, RowIndexSupport rowIndexSupport, TokenRouter router, Map<Indexer, IndexingQueue> indexingQueues) {
+        this.options = options;
+        this.rowIndexSupport = rowIndexSupport;
+        this.router = router;
+        this.indexingQueues = indexingQueues;
+    }
+
+    /**
+     * @return false if this snapshot has already been retired, in which case the current one must be used.
+     */
+    boolean ref() {
+        while (true) {
+            int n = refs.get();
+            if (n <= 0) return false;
+            if (refs.compareAndSet(n, n + 1)) return true;
+        }
+    }
+
+    void unref() {
+        if (refs.decrementAndGet() == 0) {
+            for (Indexer indexer : retired) {
+                IndexingQueue indexingQueue = indexingQueues.get(indexer);
+                if (indexingQueue != null) indexingQueue.clear();
+                indexer.removeIndex();
+            }
+        }
+    }
+
+    /**
+     * Drops the RowIndex's reference after this snapshot has been replaced.
+     *
+     * @param toRemove the indexers of this snapshot which the replacement does not have.
+     */
+    void retire(Collection<Indexer> toRemove) {
+        if (this == EMPTY) return;
+        retired = toRemove;
+        logger.debug("Retiring index snapshot with {} indexers to remove", toRemove.size());
+        unref();
+    }
+}
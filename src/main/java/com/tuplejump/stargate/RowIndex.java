@@ -16,13 +16,23 @@
 
 package com.tuplejump.stargate;
 
+import com.tuplejump.stargate.cassandra.BootJournal;
+import com.tuplejump.stargate.cassandra.IndexRebuilder;
+import com.tuplejump.stargate.cassandra.IndexingQueue;
 import com.tuplejump.stargate.cassandra.RowIndexSupport;
 import com.tuplejump.stargate.cassandra.SearchSupport;
+import com.tuplejump.stargate.cassandra.TokenRangeFilter;
 import com.tuplejump.stargate.lucene.Indexer;
+import com.tuplejump.stargate.lucene.LazyIndexer;
 import com.tuplejump.stargate.lucene.NearRealTimeIndexer;
 import com.tuplejump.stargate.lucene.Options;
+import com.tuplejump.stargate.lucene.SearchOptions;
 import com.tuplejump.stargate.lucene.SearcherCallback;
+import com.tuplejump.stargate.lucene.ShardingOptions;
+import com.tuplejump.stargate.lucene.query.FilterCache;
+import com.tuplejump.stargate.lucene.query.QueryPlanCache;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.config.ColumnDefinition;
 import org.apache.cassandra.cql3.CFDefinition;
 import org.apache.cassandra.db.ColumnFamily;
@@ -34,6 +44,7 @@ import org.apache.cassandra.db.index.PerRowSecondaryIndex;
 import org.apache.cassandra.db.index.SecondaryIndexSearcher;
 import org.apache.cassandra.db.marshal.AbstractType;
 import org.apache.cassandra.dht.AbstractBounds;
+import org.apache.cassandra.dht.Bounds;
 import org.apache.cassandra.dht.Range;
 import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.exceptions.ConfigurationException;
@@ -47,7 +58,12 @@ import org.apache.cassandra.utils.FBUtilities;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,12 +71,13 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * User: satya
@@ -70,6 +87,11 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class RowIndex extends PerRowSecondaryIndex {
     protected static final Logger logger = LoggerFactory.getLogger(RowIndex.class);
     Map<Range<Token>, Indexer> indexers = new HashMap<>();
+    Map<Indexer, IndexingQueue> indexingQueues = new HashMap<>();
+    //the shared indexers by shard name when sharding is on
+    Map<String, Indexer> shards = new HashMap<>();
+    //rebuilt from indexers on every change and read without locks
+    volatile IndexSnapshot snapshot = IndexSnapshot.EMPTY;
     protected ColumnDefinition columnDefinition;
     protected String keyspace;
     protected String indexName;
@@ -78,25 +100,30 @@ public class RowIndex extends PerRowSecondaryIndex {
     protected Options options;
     protected RowIndexSupport rowIndexSupport;
     protected CFDefinition tableDefinition;
-    private ReadWriteLock indexLock = new ReentrantReadWriteLock();
-    private final Lock readLock = indexLock.readLock();
-    private final Lock writeLock = indexLock.writeLock();
-    static ExecutorService executorService = Executors.newFixedThreadPool(10);
-    static class RowkeyColumnFamiy {
-    	ByteBuffer rowKey;
-		ColumnFamily cf;
-
-		public RowkeyColumnFamiy(ByteBuffer rowKey, ColumnFamily cf){
-    		this.rowKey = rowKey.duplicate();
-    		this.cf = cf;
-    	}
-    };
-    private Queue<RowkeyColumnFamiy> toBeAdded=new ConcurrentLinkedQueue<>();
+    //made for the current options, so it is dropped when they change
+    protected QueryPlanCache queryPlans;
+    //only serializes the changes to the indexers. Readers and writers use the snapshot.
+    private final Lock writeLock = new ReentrantLock();
+    //the pool searches of this index fan out on, unless a search names another
+    protected volatile SearchPool searchPool = SearchPool.get();
+    static final int OPEN_THREADS = Integer.getInteger("sg.open.threads", Runtime.getRuntime().availableProcessors());
+    //rows written while booting, till the indexers are made
+    private volatile BootJournal bootJournal;
+    //replays boot journals and rebuilds off the gossip thread which reports the ring change
+    private static final ExecutorService bootReplayer = Executors.newSingleThreadExecutor(new NamedThreadFactory("SGBootReplay"));
 
     public RowIndexSupport getRowIndexSupport() {
         return rowIndexSupport;
     }
 
+    public QueryPlanCache getQueryPlans() {
+        return queryPlans;
+    }
+
+    public ColumnDefinition getColumnDefinition() {
+        return columnDefinition;
+    }
+
     public String getPrimaryColumnName() {
         return primaryColumnName;
     }
@@ -107,103 +134,246 @@ public class RowIndex extends PerRowSecondaryIndex {
 
     @Override
     public void index(ByteBuffer rowKey, ColumnFamily cf) {
-    	if (!StorageService.instance.isInitialized()) {
-    		toBeAdded.add(new RowkeyColumnFamiy(rowKey,cf));
-    		return;
-    	}
-        readLock.lock();
+        BootJournal journal = bootJournal;
+        if (journal != null && journal.add(rowKey, cf)) return;
+        IndexSnapshot current = acquireSnapshot();
         try {
-            rowIndexSupport.indexRow(indexer(baseCfs.partitioner.decorateKey(rowKey)), rowKey, cf);
+            Indexer indexer = indexer(current, baseCfs.partitioner.decorateKey(rowKey));
+            IndexingQueue indexingQueue = current.indexingQueues.get(indexer);
+            if (indexingQueue != null) {
+                indexingQueue.add(rowKey, cf);
+            } else {
+                current.rowIndexSupport.indexRow(indexer, rowKey, cf);
+            }
         } finally {
-            readLock.unlock();
+            current.unref();
         }
 
     }
 
     @Override
     public void delete(DecoratedKey key) {
-        readLock.lock();
+        IndexSnapshot current = acquireSnapshot();
         try {
             AbstractType<?> rkValValidator = baseCfs.metadata.getKeyValidator();
             Term term = Fields.rkTerm(rkValValidator.getString(key.key));
-            indexer(key).delete(term);
+            delete(current, key, term);
         } finally {
-            readLock.unlock();
+            current.unref();
         }
     }
 
     public void delete(DecoratedKey decoratedKey, String pkString, Long ts) {
-        readLock.lock();
+        IndexSnapshot current = acquireSnapshot();
         try {
-            indexer(decoratedKey).delete(Fields.idTerm(pkString), Fields.tsTerm(ts));
+            delete(current, decoratedKey, Fields.idTerm(pkString), Fields.tsTerm(ts));
         } finally {
-            readLock.unlock();
+            current.unref();
+        }
+    }
+
+    private void delete(IndexSnapshot current, DecoratedKey key, Term... terms) {
+        Indexer indexer = indexer(current, key);
+        IndexingQueue indexingQueue = current.indexingQueues.get(indexer);
+        //queued behind the rows of the key written before it
+        if (indexingQueue != null) {
+            indexingQueue.delete(terms);
+        } else {
+            indexer.delete(terms);
         }
     }
 
+    /**
+     * @return the current snapshot, which must be unref'd once done with.
+     */
+    private IndexSnapshot acquireSnapshot() {
+        while (true) {
+            IndexSnapshot current = snapshot;
+            //lost a race with a ring change. the replacement is already published.
+            if (current.ref()) return current;
+        }
+    }
+
+    /**
+     * Publishes a snapshot of the indexers as they are now and retires the previous one.
+     */
+    private void publishSnapshot(Collection<Indexer> toRemove) {
+        IndexSnapshot previous = snapshot;
+        if (indexers == null) {
+            snapshot = IndexSnapshot.EMPTY;
+        } else {
+            TokenRouter router = new TokenRouter(indexers);
+            snapshot = new IndexSnapshot(options, rowIndexSupport, router, new HashMap<>(indexingQueues));
+        }
+        previous.retire(toRemove);
+    }
+
     public <T> T search(ExtendedFilter filter, SearcherCallback<T> searcherCallback) {
+        return search(filter, 0, searcherCallback);
+    }
+
+    public <T> T search(ExtendedFilter filter, long maxStalenessMs, SearcherCallback<T> searcherCallback) {
+        return search(filter, maxStalenessMs, null, searcherCallback);
+    }
+
+    /**
+     * @param poolName the search pool to run on, null for the pool of this index.
+     */
+    public <T> T search(ExtendedFilter filter, long maxStalenessMs, String poolName, SearcherCallback<T> searcherCallback) {
+        SearchPool pool = poolName == null ? searchPool : SearchPool.find(poolName);
+        if (pool == null) throw new IllegalArgumentException("No search pool named " + poolName);
         List<IndexReader> indexReaders = new ArrayList<>();
         AbstractBounds<RowPosition> keyRange = filter.dataRange.keyRange();
         Range<Token> filterRange = new Range<>(keyRange.left.getToken(), keyRange.right.getToken());
         boolean isSingleToken = filterRange.left.equals(filterRange.right);
         boolean isFullRange = isSingleToken && baseCfs.partitioner.getMinimumToken().equals(filterRange.left);
         Map<Indexer, IndexSearcher> indexSearchers = new HashMap<>();
-        for (Map.Entry<Range<Token>, Indexer> entry : indexers.entrySet()) {
-            Range<Token> range = entry.getKey();
-            boolean intersects = intersects(filterRange, isSingleToken, isFullRange, range);
-            if (intersects) {
-                Indexer indexer = entry.getValue();
-                IndexSearcher searcher = indexer.acquire();
+        IndexSnapshot current = acquireSnapshot();
+        MultiReader multiReader = null;
+        try {
+            for (Indexer indexer : current.router.indexers(filterRange, isSingleToken, isFullRange)) {
+                IndexSearcher searcher = acquire(current, indexer, maxStalenessMs);
                 indexSearchers.put(indexer, searcher);
                 indexReaders.add(searcher.getIndexReader());
             }
-        }
-        IndexReader[] indexReadersArr = new IndexReader[indexReaders.size()];
-        indexReaders.toArray(indexReadersArr);
-        MultiReader multiReader = new MultiReader(indexReadersArr, false);
-        IndexSearcher allSearcher = new IndexSearcher(multiReader, executorService);
-        try {
+            IndexReader[] indexReadersArr = new IndexReader[indexReaders.size()];
+            indexReaders.toArray(indexReadersArr);
+            multiReader = new MultiReader(indexReadersArr, false);
+            IndexSearcher allSearcher = new IndexSearcher(multiReader, pool.executor());
             return searcherCallback.doWithSearcher(allSearcher);
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
             try {
-                multiReader.close();
+                if (multiReader != null) multiReader.close();
             } catch (IOException e) {
                 logger.error("Could not close reader", e);
             }
             for (Map.Entry<Indexer, IndexSearcher> entry : indexSearchers.entrySet()) {
                 entry.getKey().release(entry.getValue());
             }
+            current.unref();
+        }
+    }
+
+    /**
+     * Acquires the pool the options of this index ask for, which is released when the options change or the index
+     * is removed.
+     */
+    private SearchPool searchPool(SearchOptions search) {
+        if (search.getPool() == null && search.getThreads() == null) return SearchPool.get();
+        String name = search.getPool() != null ? search.getPool() : keyspace + "." + tableName + "." + indexName;
+        //naming a pool without sizing it uses the pool as it is
+        SearchPool pool = search.getThreads() == null ? SearchPool.acquire(name) : null;
+        if (pool != null) return pool;
+        int threads = search.getThreads() != null ? search.getThreads() : SearchPool.DEFAULT_THREADS;
+        int queueDepth = search.getQueueDepth() != null ? search.getQueueDepth() : SearchPool.DEFAULT_QUEUE_DEPTH;
+        return SearchPool.acquire(name, threads, queueDepth);
+    }
+
+    /**
+     * Runs the callback on the searcher of each indexer the search needs at the same time, on the search pool,
+     * instead of on one searcher over all of them.
+     *
+     * @param poolName the search pool to run on, null for the pool of this index.
+     * @return the results of the callback for each indexer.
+     */
+    public <T> List<T> searchEach(ExtendedFilter filter, long maxStalenessMs, String poolName, final SearcherCallback<T> searcherCallback) {
+        SearchPool pool = poolName == null ? searchPool : SearchPool.find(poolName);
+        if (pool == null) throw new IllegalArgumentException("No search pool named " + poolName);
+        AbstractBounds<RowPosition> keyRange = filter.dataRange.keyRange();
+        Range<Token> filterRange = new Range<>(keyRange.left.getToken(), keyRange.right.getToken());
+        boolean isSingleToken = filterRange.left.equals(filterRange.right);
+        boolean isFullRange = isSingleToken && baseCfs.partitioner.getMinimumToken().equals(filterRange.left);
+        Map<Indexer, IndexSearcher> indexSearchers = new LinkedHashMap<>();
+        List<Future<T>> searches = new ArrayList<>();
+        IndexSnapshot current = acquireSnapshot();
+        try {
+            for (Indexer indexer : current.router.indexers(filterRange, isSingleToken, isFullRange)) {
+                final IndexSearcher searcher = acquire(current, indexer, maxStalenessMs);
+                indexSearchers.put(indexer, searcher);
+                searches.add(pool.executor().submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return searcherCallback.doWithSearcher(searcher);
+                    }
+                }));
+            }
+            List<T> results = new ArrayList<>(searches.size());
+            for (Future<T> search : searches) {
+                results.add(search.get());
+            }
+            return results;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (Future<T> search : searches) {
+                search.cancel(false);
+            }
+            //searches which had started are waited for before their searchers are released
+            for (Future<T> search : searches) {
+                try {
+                    if (!search.isCancelled()) search.get();
+                } catch (Exception ignored) {
+                    //already reported
+                }
+            }
+            for (Map.Entry<Indexer, IndexSearcher> entry : indexSearchers.entrySet()) {
+                entry.getKey().release(entry.getValue());
+            }
+            current.unref();
         }
     }
 
-    private boolean intersects(Range<Token> filterRange, boolean isSingleToken, boolean isFullRange, Range<Token> range) {
-        boolean intersects;
-        if (isFullRange) intersects = true;
-        else if (isSingleToken) intersects = range.contains(filterRange.left);
-        else {
-            intersects = range.intersects(filterRange);
+    /**
+     * Returns a filter which keeps the search to the tokens asked for. This is needed only when sharding is on,
+     * as a shard also holds the rows of other ranges.
+     *
+     * @return the filter, or null if the whole index can be searched.
+     */
+    public Filter tokenFilter(ExtendedFilter filter) {
+        if (!options.primary.getSharding().isSharded()) return null;
+        AbstractBounds<RowPosition> keyRange = filter.dataRange.keyRange();
+        Token left = keyRange.left.getToken();
+        Token right = keyRange.right.getToken();
+        Token minimum = baseCfs.partitioner.getMinimumToken();
+        Bounds<Token> bounds;
+        if (left.equals(right)) {
+            if (left.equals(minimum)) return null;
+            bounds = new Bounds<>(left, right, baseCfs.partitioner);
+        } else if (right.equals(minimum) || left.compareTo(right) < 0) {
+            //inclusive of the left token as keys after the left key can share its token
+            bounds = new Bounds<>(left, right, baseCfs.partitioner);
+        } else {
+            //wrapping ranges are left to the row filter
+            return null;
         }
-        return intersects;
+        return new TokenRangeFilter(baseCfs.partitioner.getTokenFactory(), Collections.singletonList(bounds));
+    }
+
+    /**
+     * A strict search also waits for the rows still queued for the indexer when indexing is async.
+     */
+    private static IndexSearcher acquire(IndexSnapshot current, Indexer indexer, long maxStalenessMs) {
+        IndexingQueue indexingQueue = maxStalenessMs == 0 ? current.indexingQueues.get(indexer) : null;
+        if (indexingQueue != null) indexingQueue.flush();
+        return indexer.acquire(maxStalenessMs);
     }
 
     public Indexer indexer(DecoratedKey decoratedKey) {
-        for (Map.Entry<Range<Token>, Indexer> entry : indexers.entrySet()) {
-            if (entry.getKey().contains(decoratedKey.getToken())) return entry.getValue();
-        }
+        return indexer(snapshot, decoratedKey);
+    }
+
+    private Indexer indexer(IndexSnapshot current, DecoratedKey decoratedKey) {
+        Indexer indexer = current.router.indexer(decoratedKey.getToken());
+        if (indexer != null) return indexer;
         throw new IllegalStateException("No VNodeIndexer found for indexing key [" + decoratedKey + "]");
     }
 
     @Override
     public SecondaryIndexSearcher createSecondaryIndexSearcher(Set<ByteBuffer> columns) {
-        readLock.lock();
-        try {
-            waitForIndexBuilt();
-            return new SearchSupport(baseCfs.indexManager, this, columns, this.options);
-        } finally {
-            readLock.unlock();
-        }
+        waitForIndexBuilt();
+        return new SearchSupport(baseCfs.indexManager, this, columns, this.options);
     }
 
     private void waitForIndexBuilt() {
@@ -233,15 +403,28 @@ public class RowIndex extends PerRowSecondaryIndex {
             this.options = Options.getOptions(primaryColumnName, baseCfs, optionsJson);
 
             logger.warn("Creating new NRT Indexer for {}", indexName);
+            rowIndexSupport = new RowIndexSupport(options, baseCfs);
+            if (queryPlans != null) queryPlans.close();
+            queryPlans = new QueryPlanCache(options, keyspace + "." + tableName + "." + indexName);
+            SearchPool previousPool = searchPool;
+            searchPool = searchPool(options.primary.getSearch());
+            previousPool.release();
             indexers = new HashMap<>();
+            indexingQueues = new HashMap<>();
+            shards = new HashMap<>();
+            publishSnapshot(Collections.<Indexer>emptyList());
             if (StorageService.instance.isInitialized()) {
                 updateIndexers();
             } else {
                 //this is booting. lets make indexers after booting is complete
+                try {
+                    bootJournal = new BootJournal(Utils.getDirectory(keyspace, tableName, indexName, "_journal"));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
                 RingChangeListener changeListener = new RingChangeListener();
                 Gossiper.instance.register(changeListener);
             }
-            rowIndexSupport = new RowIndexSupport(options, baseCfs);
 
         } finally {
             writeLock.unlock();
@@ -251,14 +434,12 @@ public class RowIndex extends PerRowSecondaryIndex {
         writeLock.lock();
         try {
             Collection<Range<Token>> ranges = StorageService.instance.getLocalRanges(keyspace);
+            List<Indexer> toRemove = new ArrayList<>();
+            boolean rangesRemoved = false;
             //Collection<Range<Token>> ranges = Collections.singletonList(new Range<Token>(Murmur3Partitioner.MINIMUM.getToken(), Murmur3Partitioner.MINIMUM.getToken()));
             if (indexers.isEmpty()) {
                 logger.warn("Adding VNode indexers");
-                for (Range<Token> range : ranges) {
-                    Indexer indexer = new NearRealTimeIndexer(this.options.analyzer, keyspace, baseCfs.name, indexName, range.left.toString());
-                    indexers.put(range, indexer);
-                    logger.warn("Added VNode indexers for range {}", range);
-                }
+                addIndexers(ranges);
             } else {
                 logger.warn("Change in VNode indexers");
                 HashMap<Range<Token>, Indexer> indexersToRemove = new HashMap<>(indexers);
@@ -268,19 +449,165 @@ public class RowIndex extends PerRowSecondaryIndex {
                 for (Map.Entry<Range<Token>, Indexer> entry : indexersToRemove.entrySet()) {
                     logger.warn("Removing indexer for range {}", entry.getKey());
                     Indexer indexer = indexers.remove(entry.getKey());
-                    indexer.removeIndex();
+                    if (!options.primary.getSharding().isSharded()) {
+                        //removed once no write or search is using it anymore
+                        indexingQueues.remove(indexer);
+                        toRemove.add(indexer);
+                    }
+                    rangesRemoved = true;
                     logger.warn("Removed indexer for range {}", entry.getKey());
                 }
+                List<Range<Token>> toAdd = new ArrayList<>();
+                for (Range<Token> range : ranges) {
+                    if (!indexers.containsKey(range)) toAdd.add(range);
+                }
+                addIndexers(toAdd);
+            }
+            publishSnapshot(toRemove);
+            if (!shards.isEmpty() && rangesRemoved) {
+                cleanupShards(ranges);
             }
         } finally {
             writeLock.unlock();
         }
-        while(!this.toBeAdded.isEmpty()){
-        	RowkeyColumnFamiy rkc = this.toBeAdded.remove();
-        	this.index(rkc.rowKey, rkc.cf);
+        if (bootJournal != null) {
+            bootReplayer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replayBootJournal();
+                }
+            });
+        }
+    }
+
+    private void replayBootJournal() {
+        BootJournal journal = bootJournal;
+        if (journal == null) return;
+        try {
+            if (!journal.replay(this)) {
+                logger.warn("Rebuilding {} as its boot journal overflowed", indexName);
+                rebuild();
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not replay the boot journal of " + indexName, e);
+        } finally {
+            bootJournal = null;
         }
     }
 
+    private void rebuild() {
+        baseCfs.forceBlockingFlush();
+        IndexSnapshot current = acquireSnapshot();
+        try {
+            new IndexRebuilder(baseCfs, current.rowIndexSupport, indexName).rebuild(current.router.ranges());
+        } finally {
+            current.unref();
+        }
+    }
+
+    private void addIndexers(Collection<Range<Token>> ranges) {
+        ShardingOptions sharding = options.primary.getSharding();
+        Map<Range<Token>, String> names = new LinkedHashMap<>();
+        Set<String> toOpen = new LinkedHashSet<>();
+        for (Range<Token> range : ranges) {
+            String name = sharding.isSharded() ? shardName(range, sharding.getShards()) : range.left.toString();
+            names.put(range, name);
+            if (!shards.containsKey(name)) toOpen.add(name);
+        }
+        Map<String, Indexer> opened = openIndexers(toOpen);
+        for (Map.Entry<Range<Token>, String> entry : names.entrySet()) {
+            Indexer indexer = opened.get(entry.getValue());
+            if (sharding.isSharded()) {
+                if (indexer != null) shards.put(entry.getValue(), indexer);
+                else indexer = shards.get(entry.getValue());
+            }
+            indexers.put(entry.getKey(), indexer);
+            logger.warn("Added indexer for range {}", entry.getKey());
+        }
+    }
+
+    /**
+     * Opens the indexers of the given names on a pool of at most sg.open.threads threads,
+     * or makes lazy indexers which open on first use when lazyOpen is on.
+     */
+    private Map<String, Indexer> openIndexers(Collection<String> vNodeNames) {
+        Map<String, Indexer> opened = new HashMap<>();
+        if (vNodeNames.isEmpty()) return opened;
+        long started = System.currentTimeMillis();
+        boolean lazy = options.primary.getIndexing().isLazyOpen();
+        final FilterCache filterCache = queryPlans.getFilterCache();
+        if (lazy) {
+            for (String vNodeName : vNodeNames) {
+                opened.put(vNodeName, new LazyIndexer(this.options, filterCache, keyspace, baseCfs.name, indexName, vNodeName));
+            }
+        } else {
+            ExecutorService opener = Executors.newFixedThreadPool(Math.min(OPEN_THREADS, vNodeNames.size()), new NamedThreadFactory("SGIndexOpener"));
+            Map<String, Future<Indexer>> opening = new LinkedHashMap<>();
+            try {
+                for (final String vNodeName : vNodeNames) {
+                    opening.put(vNodeName, opener.submit(new Callable<Indexer>() {
+                        @Override
+                        public Indexer call() throws Exception {
+                            return new NearRealTimeIndexer(options, filterCache, keyspace, baseCfs.name, indexName, vNodeName);
+                        }
+                    }));
+                }
+                for (Map.Entry<String, Future<Indexer>> entry : opening.entrySet()) {
+                    opened.put(entry.getKey(), entry.getValue().get());
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                //the ones opened before the failure would be left open
+                for (Future<Indexer> future : opening.values()) {
+                    try {
+                        future.get().close();
+                    } catch (Exception ignored) {
+                        //failed to open
+                    }
+                }
+                throw new RuntimeException(e);
+            } finally {
+                opener.shutdown();
+            }
+        }
+        if (options.primary.getIndexing().isAsync()) {
+            for (Indexer indexer : opened.values()) {
+                indexingQueues.put(indexer, new IndexingQueue(indexer, rowIndexSupport, options.primary.getIndexing()));
+            }
+        }
+        logger.warn("{} {} indexers for {} in {} ms", lazy ? "Made lazy" : "Opened", opened.size(), indexName, System.currentTimeMillis() - started);
+        return opened;
+    }
+
+    /**
+     * A range always goes to the same shard as long as its left token and the number of shards stay the same,
+     * so the shards can be reopened across restarts.
+     */
+    static String shardName(Range<Token> range, int numShards) {
+        return "shard" + Math.abs(range.left.hashCode() % numShards);
+    }
+
+    /**
+     * Deletes the rows of the ranges this node does not own anymore from all the shards.
+     */
+    private void cleanupShards(Collection<Range<Token>> ownedRanges) {
+        Filter owned = new TokenRangeFilter(baseCfs.partitioner.getTokenFactory(), new ArrayList<>(ownedRanges));
+        BooleanQuery notOwned = new BooleanQuery();
+        notOwned.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+        notOwned.add(new ConstantScoreQuery(owned), BooleanClause.Occur.MUST_NOT);
+        for (Indexer indexer : shards.values()) {
+            IndexingQueue indexingQueue = indexingQueues.get(indexer);
+            if (indexingQueue != null) indexingQueue.flush();
+            indexer.delete(notOwned);
+        }
+    }
+
+    /**
+     * @return each indexer once, even when it is shared by many ranges.
+     */
+    private Collection<Indexer> allIndexers(IndexSnapshot current) {
+        return current.router.indexers();
+    }
+
     @Override
     public void validateOptions() throws ConfigurationException {
         assert columnDefs != null && columnDefs.size() == 1;
@@ -295,44 +622,39 @@ public class RowIndex extends PerRowSecondaryIndex {
 
     @Override
     public boolean indexes(ByteBuffer name) {
-        String toCheck = rowIndexSupport.getActualColumnName(name);
-        for (String columnName : this.options.getFields().keySet()) {
-            boolean areEqual = toCheck.trim().equalsIgnoreCase(columnName.trim());
-            if (logger.isDebugEnabled())
-                logger.debug(String.format("Comparing name for index - This column name [%s] - Passed column name [%s] - Equal [%s]", columnName, toCheck, areEqual));
-            if (areEqual)
-                return true;
-        }
-        return false;
+        return rowIndexSupport.indexedColumn(name) != null;
     }
 
     @Override
     public void forceBlockingFlush() {
-        readLock.lock();
+        IndexSnapshot current = acquireSnapshot();
         try {
             if (isIndexBuilt(columnDefinition.name)) {
-                for (Indexer indexer : indexers.values()) {
+                for (IndexingQueue indexingQueue : current.indexingQueues.values()) {
+                    indexingQueue.flush();
+                }
+                for (Indexer indexer : allIndexers(current)) {
                     indexer.commit();
                 }
             }
         } finally {
-            readLock.unlock();
+            current.unref();
         }
     }
 
     @Override
     public long getLiveSize() {
-        readLock.lock();
+        IndexSnapshot current = acquireSnapshot();
         try {
             long size = 0;
             if (isIndexBuilt(columnDefinition.name)) {
-                for (Indexer indexer : indexers.values()) {
+                for (Indexer indexer : allIndexers(current)) {
                     size = (indexer == null) ? 0 : indexer.getLiveSize();
                 }
             }
             return size;
         } finally {
-            readLock.unlock();
+            current.unref();
         }
     }
 
@@ -361,18 +683,52 @@ public class RowIndex extends PerRowSecondaryIndex {
         }
     }
 
+    /**
+     * Builds the index on many threads with {@link IndexRebuilder} instead of the single threaded
+     * builder of Cassandra.
+     */
+    @Override
+    protected void buildIndexBlocking() {
+        waitForIndexers();
+        rebuild();
+        forceBlockingFlush();
+        setIndexBuilt();
+    }
+
+    /**
+     * When an index is dropped and created again, Cassandra starts building it before it is reloaded on
+     * another thread, so the build waits for the reload to make the indexers it writes to.
+     */
+    private void waitForIndexers() {
+        while (true) {
+            writeLock.lock();
+            try {
+                if (indexers != null) return;
+            } finally {
+                writeLock.unlock();
+            }
+            Utils.threadSleep(10);
+        }
+    }
+
 
     @Override
     public void invalidate() {
         writeLock.lock();
         try {
             logger.warn("Removing NRT Indexer for {}", indexName);
-            for (Indexer indexer : indexers.values()) {
-                if (indexer != null) {
-                    indexer.removeIndex();
-                }
+            for (IndexingQueue indexingQueue : indexingQueues.values()) {
+                indexingQueue.clear();
             }
+            indexingQueues.clear();
+            //the indexes are removed once the searches and writes in flight are done with them
+            Collection<Indexer> toRemove = allIndexers(snapshot);
             indexers = null;
+            publishSnapshot(toRemove);
+            shards.clear();
+            if (queryPlans != null) queryPlans.close();
+            searchPool.release();
+            searchPool = SearchPool.get();
             setIndexRemoved();
         } finally {
             writeLock.unlock();
@@ -381,16 +737,19 @@ public class RowIndex extends PerRowSecondaryIndex {
 
     @Override
     public void truncateBlocking(long l) {
-        readLock.lock();
+        IndexSnapshot current = acquireSnapshot();
         try {
-            for (Indexer indexer : indexers.values()) {
+            for (IndexingQueue indexingQueue : current.indexingQueues.values()) {
+                indexingQueue.clear();
+            }
+            for (Indexer indexer : allIndexers(current)) {
                 if (indexer != null) {
                     indexer.truncate(l);
                     logger.warn(indexName + " Truncated index {}.", indexName);
                 }
             }
         } finally {
-            readLock.unlock();
+            current.unref();
         }
     }
     private class RingChangeListener implements IEndpointStateChangeSubscriber {
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named, node wide pool of threads which searches fan out over the segments of the indexes they search.
+ * Indexes share the default pool unless their search options name a pool of their own, so that heavy searches
+ * on one table can be kept from starving the searches on others. A search may also name the pool to run on.
+ * A pool has a bounded queue. Tasks which do not fit run on the thread of the search and are counted as rejected.
+ * The default pool is sized using the sg.search.threads and sg.search.queue system properties. Pools are published
+ * over JMX under com.tuplejump.stargate:type=SearchPool, where their threads can be changed, and their queue depth,
+ * active threads and rejections are published as metrics with the pool name as the scope. A named pool is made by the
+ * first index which asks for it and keeps the size it was made with. It is shut down and unpublished when the last
+ * index using it releases it.
+ */
+public class SearchPool implements SearchPoolMBean {
+    private static final Logger logger = LoggerFactory.getLogger(SearchPool.class);
+
+    public static final String DEFAULT = "default";
+
+    public static final int DEFAULT_THREADS = Integer.getInteger("sg.search.threads", Runtime.getRuntime().availableProcessors());
+
+    public static final int DEFAULT_QUEUE_DEPTH = Integer.getInteger("sg.search.queue", 1024);
+
+    private static final Map<String, SearchPool> pools = new HashMap<>();
+
+    private final String name;
+    private final int queueDepth;
+    private final ThreadPoolExecutor executor;
+    private final Counter rejected;
+    private final MetricName[] metricNames;
+    private ObjectName mbeanName;
+    //the indexes using this pool, guarded by pools
+    private int users;
+
+    private SearchPool(String name, int threads, int queueDepth) {
+        this.name = name;
+        this.queueDepth = queueDepth;
+        this.metricNames = new MetricName[]{new MetricName(SearchPool.class, "Rejected", name),
+                new MetricName(SearchPool.class, "QueueDepth", name), new MetricName(SearchPool.class, "ActiveThreads", name)};
+        this.rejected = Metrics.newCounter(metricNames[0]);
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueDepth),
+                new NamedThreadFactory("SGSearch-" + name), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                rejected.inc();
+                //a search still running on a pool which was just released finishes on its own thread
+                task.run();
+            }
+        });
+        Metrics.newGauge(metricNames[1], new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return executor.getQueue().size();
+            }
+        });
+        Metrics.newGauge(metricNames[2], new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return executor.getActiveCount();
+            }
+        });
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("com.tuplejump.stargate:type=SearchPool,name=" + ObjectName.quote(name));
+            mbs.registerMBean(this, objectName);
+            mbeanName = objectName;
+        } catch (Exception e) {
+            logger.error("Unable to register search pool " + name + " with JMX", e);
+        }
+    }
+
+    /**
+     * @return the default pool, which is never released.
+     */
+    public static SearchPool get() {
+        synchronized (pools) {
+            SearchPool pool = pools.get(DEFAULT);
+            if (pool == null) {
+                pool = new SearchPool(DEFAULT, DEFAULT_THREADS, DEFAULT_QUEUE_DEPTH);
+                pools.put(DEFAULT, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Returns the pool of the given name for an index to use till it calls {@link #release()}, made with the given
+     * size if there is none yet. An existing pool keeps the size it was made with, and a different size asked for
+     * is logged and ignored. Its threads can still be changed over JMX.
+     */
+    public static SearchPool acquire(String name, int threads, int queueDepth) {
+        if (DEFAULT.equals(name)) return get();
+        synchronized (pools) {
+            SearchPool pool = pools.get(name);
+            if (pool == null) {
+                pool = new SearchPool(name, threads, queueDepth);
+                pools.put(name, pool);
+                logger.warn("Made search pool {} with {} threads", name, threads);
+            } else if (pool.getThreads() != threads || pool.queueDepth != queueDepth) {
+                logger.warn("Search pool {} already has {} threads and a queue of {}, ignoring {} threads and a queue of {}",
+                        name, pool.getThreads(), pool.queueDepth, threads, queueDepth);
+            }
+            pool.users++;
+            return pool;
+        }
+    }
+
+    /**
+     * Returns the pool of the given name for an index to use till it calls {@link #release()}, as it is.
+     *
+     * @return the pool, or null if there is none.
+     */
+    public static SearchPool acquire(String name) {
+        if (DEFAULT.equals(name)) return get();
+        synchronized (pools) {
+            SearchPool pool = pools.get(name);
+            if (pool != null) pool.users++;
+            return pool;
+        }
+    }
+
+    /**
+     * @return the pool of the given name, or null if there is none.
+     */
+    public static SearchPool find(String name) {
+        synchronized (pools) {
+            return pools.get(name);
+        }
+    }
+
+    /**
+     * Releases a pool got by acquire. The last release of a named pool shuts it down, and removes its metrics
+     * and its MBean. Releasing the default pool does nothing.
+     */
+    public void release() {
+        if (DEFAULT.equals(name)) return;
+        synchronized (pools) {
+            if (--users > 0 || pools.get(name) != this) return;
+            pools.remove(name);
+        }
+        executor.shutdown();
+        for (MetricName metricName : metricNames) {
+            Metrics.defaultRegistry().removeMetric(metricName);
+        }
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                logger.error("Unable to unregister search pool " + name + " from JMX", e);
+            }
+        }
+        logger.warn("Removed search pool {}", name);
+    }
+
+    public ExecutorService executor() {
+        return executor;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    @Override
+    public synchronized void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("A search pool needs at least one thread");
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        logger.warn("Resized search pool {} to {} threads", name, threads);
+    }
+
+    @Override
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.count();
+    }
+
+    @Override
+    public long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+}
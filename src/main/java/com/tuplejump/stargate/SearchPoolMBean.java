@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate;
+
+/**
+ * The JMX view of a search pool, through which its threads can be resized at runtime.
+ */
+public interface SearchPoolMBean {
+
+    public int getThreads();
+
+    public void setThreads(int threads);
+
+    public int getActiveThreads();
+
+    public int getQueueDepth();
+
+    public long getRejected();
+
+    public long getCompleted();
+}
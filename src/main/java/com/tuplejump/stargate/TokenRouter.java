@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate;
+
+import com.tuplejump.stargate.lucene.Indexer;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+
+import java.util.*;
+
+/**
+ * An immutable lookup of the indexer owning a token.
+ * The local ranges are unwrapped and sorted by their left token, so that finding the indexer
+ * of a token is a binary search over the range boundaries. It is rebuilt whenever the ring changes.
+ */
+class TokenRouter {
+
+    static final TokenRouter EMPTY = new TokenRouter(Collections.<Range<Token>, Indexer>emptyMap());
+
+    //the non wrapping pieces of the local ranges, sorted by left token
+    private final Range<Token>[] ranges;
+    private final Token[] lefts;
+    private final Indexer[] indexers;
+    //each indexer once, even when it is shared by many ranges
+    private final Collection<Indexer> distinct;
+
+    @SuppressWarnings("unchecked")
+    TokenRouter(Map<Range<Token>, Indexer> indexersByRange) {
+        List<Map.Entry<Range<Token>, Indexer>> pieces = new ArrayList<>();
+        for (Map.Entry<Range<Token>, Indexer> entry : indexersByRange.entrySet()) {
+            for (Range<Token> piece : entry.getKey().unwrap()) {
+                pieces.add(new AbstractMap.SimpleImmutableEntry<>(piece, entry.getValue()));
+            }
+        }
+        Collections.sort(pieces, new Comparator<Map.Entry<Range<Token>, Indexer>>() {
+            @Override
+            public int compare(Map.Entry<Range<Token>, Indexer> o1, Map.Entry<Range<Token>, Indexer> o2) {
+                return o1.getKey().left.compareTo(o2.getKey().left);
+            }
+        });
+        int size = pieces.size();
+        ranges = new Range[size];
+        lefts = new Token[size];
+        indexers = new Indexer[size];
+        for (int i = 0; i < size; i++) {
+            ranges[i] = pieces.get(i).getKey();
+            lefts[i] = ranges[i].left;
+            indexers[i] = pieces.get(i).getValue();
+        }
+        distinct = Collections.unmodifiableCollection(new LinkedHashSet<>(indexersByRange.values()));
+    }
+
+    /**
+     * @return the indexer of the range containing the token, or null if no local range contains it.
+     */
+    Indexer indexer(Token token) {
+        int i = floor(token);
+        if (i >= 0 && ranges[i].contains(token)) return indexers[i];
+        //the minimum token is only contained by the piece ending at the minimum, which sorts last
+        int last = ranges.length - 1;
+        if (last >= 0 && ranges[last].contains(token)) return indexers[last];
+        return null;
+    }
+
+    /**
+     * @return the distinct indexers whose ranges intersect the given range.
+     */
+    Collection<Indexer> indexers(Range<Token> filterRange, boolean isSingleToken, boolean isFullRange) {
+        if (isFullRange) return distinct;
+        if (isSingleToken) {
+            Indexer indexer = indexer(filterRange.left);
+            return indexer == null ? Collections.<Indexer>emptyList() : Collections.singletonList(indexer);
+        }
+        Set<Indexer> found = new LinkedHashSet<>();
+        for (Range<Token> piece : filterRange.unwrap()) {
+            boolean toEnd = piece.right.isMinimum();
+            //the piece just before the left token may still extend into the filter range
+            int start = Math.max(floor(piece.left), 0);
+            for (int i = start; i < ranges.length; i++) {
+                if (!toEnd && lefts[i].compareTo(piece.right) >= 0) break;
+                if (ranges[i].intersects(piece)) found.add(indexers[i]);
+            }
+        }
+        return found;
+    }
+
+    Collection<Indexer> indexers() {
+        return distinct;
+    }
+
+    /**
+     * @return the indexers by non wrapping range, in token order.
+     */
+    Map<Range<Token>, Indexer> ranges() {
+        Map<Range<Token>, Indexer> byRange = new LinkedHashMap<>();
+        for (int i = 0; i < ranges.length; i++) {
+            byRange.put(ranges[i], indexers[i]);
+        }
+        return byRange;
+    }
+
+    /**
+     * @return the index of the last range whose left token is before the token, or -1 if there is none.
+     */
+    private int floor(Token token) {
+        int low = 0;
+        int high = lefts.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lefts[mid].compareTo(token) < 0) low = mid + 1;
+            else high = mid - 1;
+        }
+        return high;
+    }
+}
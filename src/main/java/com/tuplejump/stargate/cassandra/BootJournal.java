@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import net.openhft.chronicle.ExcerptAppender;
+import net.openhft.chronicle.ExcerptTailer;
+import net.openhft.chronicle.IndexedChronicle;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.index.PerRowSecondaryIndex;
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.io.util.FileUtils;
+import org.apache.cassandra.net.MessagingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A disk journal of the rows written to an index while the node boots and its indexers do not exist yet,
+ * as when the commit log is replayed. Rows are serialized to a Chronicle instead of being held on heap.
+ * Once the indexers are made the journal is replayed in batches on a pool of threads. Rows of the same partition
+ * always go to the same thread, so they are indexed in the order they were written. Rows keep being journaled
+ * till the replay catches up, so live writes are not indexed ahead of older journaled ones.
+ * When the journal grows past sg.boot.journal.max.mb it stops taking rows and the index has to be rebuilt instead.
+ * The replay batch size and threads are set using the sg.boot.journal.batch and sg.boot.journal.threads system properties.
+ */
+public class BootJournal {
+    protected static final Logger logger = LoggerFactory.getLogger(BootJournal.class);
+
+    public static final long MAX_BYTES = Long.getLong("sg.boot.journal.max.mb", 1024) * 1024 * 1024;
+
+    public static final int BATCH_SIZE = Integer.getInteger("sg.boot.journal.batch", 1000);
+
+    public static final int THREADS = Integer.getInteger("sg.boot.journal.threads", Runtime.getRuntime().availableProcessors());
+
+    private static final long PROGRESS_INTERVAL_MS = 10000;
+
+    private final File dir;
+    private final long maxBytes;
+    private final IndexedChronicle chronicle;
+    private final ExcerptAppender appender;
+    //set on the threads replaying a journal, whose rows go to the index and not back into the journal
+    private static final ThreadLocal<Boolean> replaying = new ThreadLocal<>();
+
+    private long bytes;
+    private long rows;
+    private volatile boolean overflowed;
+    private boolean closed;
+
+    static class Entry {
+        final byte[] rowKey;
+        final byte[] cf;
+
+        Entry(byte[] rowKey, byte[] cf) {
+            this.rowKey = rowKey;
+            this.cf = cf;
+        }
+    }
+
+    /**
+     * Opens an empty journal in the given directory. A journal left behind by an earlier boot is dropped,
+     * as the commit log it came from is replayed again.
+     */
+    public BootJournal(File dir) throws IOException {
+        this(dir, MAX_BYTES);
+    }
+
+    BootJournal(File dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (dir.exists()) FileUtils.deleteRecursive(dir);
+        dir.mkdirs();
+        chronicle = new IndexedChronicle(new File(dir, "journal").getAbsolutePath());
+        appender = chronicle.createAppender();
+    }
+
+    /**
+     * Journals a row.
+     *
+     * @return false if the journal has already been replayed or the row is being replayed, in which case the row
+     * must be indexed right away.
+     */
+    public boolean add(ByteBuffer rowKey, ColumnFamily cf) {
+        if (replaying.get() != null) return false;
+        byte[] key = new byte[rowKey.remaining()];
+        rowKey.duplicate().get(key);
+        DataOutputBuffer out = new DataOutputBuffer();
+        ColumnFamily.serializer.serialize(cf, out, MessagingService.current_version);
+        synchronized (this) {
+            if (closed) return false;
+            if (overflowed) return true;
+            int size = 8 + key.length + out.getLength();
+            if (bytes + size > maxBytes) {
+                overflowed = true;
+                logger.error("Boot journal at {} is over {} bytes. Dropping it, the index will be rebuilt", dir, maxBytes);
+                return true;
+            }
+            appender.startExcerpt(size);
+            appender.writeInt(key.length);
+            appender.write(key);
+            appender.writeInt(out.getLength());
+            appender.write(out.getData(), 0, out.getLength());
+            appender.finish();
+            bytes += size;
+            rows++;
+        }
+        return true;
+    }
+
+    /**
+     * Indexes all the journaled rows, unless the journal overflowed. Rows written while replaying are journaled
+     * and replayed too, behind the older rows of their partition, till the replay catches up. Only then does
+     * the journal stop taking rows, once all it replayed is indexed, so a live write never reaches the index
+     * before an older journaled version of its row. The journal is deleted after.
+     *
+     * @return false if the journal overflowed and the rows were not all indexed.
+     */
+    public boolean replay(PerRowSecondaryIndex index) {
+        synchronized (this) {
+            //already replayed by an earlier ring change
+            if (closed) return true;
+        }
+        try {
+            return doReplay(index);
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+            try {
+                chronicle.close();
+            } catch (IOException e) {
+                logger.error("Could not close boot journal at " + dir, e);
+            }
+            FileUtils.deleteRecursive(dir);
+        }
+    }
+
+    private boolean doReplay(final PerRowSecondaryIndex index) {
+        logger.warn("Replaying {} journaled rows ({} bytes) for {}", rows, bytes, index.getIndexName());
+        ExecutorService[] stripes = new ExecutorService[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(new NamedThreadFactory("SGJournalReplay"));
+        }
+        //keeps the reader at most two batches per thread ahead of the indexing
+        final int maxInFlight = THREADS * 2;
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        List<List<Entry>> batches = new ArrayList<>(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            batches.add(new ArrayList<Entry>(BATCH_SIZE));
+        }
+        long replayed = 0;
+        long lastLogged = System.currentTimeMillis();
+        boolean complete = true;
+        try {
+            ExcerptTailer tailer = chronicle.createTailer();
+            while (true) {
+                if (overflowed) {
+                    complete = false;
+                    break;
+                }
+                if (!tailer.nextIndex()) {
+                    //caught up. writes the batches left and waits for them before closing
+                    for (int i = 0; i < THREADS; i++) {
+                        if (!batches.get(i).isEmpty()) {
+                            submit(stripes[i], inFlight, index, batches.get(i));
+                            batches.set(i, new ArrayList<Entry>(BATCH_SIZE));
+                        }
+                    }
+                    inFlight.acquire(maxInFlight);
+                    inFlight.release(maxInFlight);
+                    synchronized (this) {
+                        if (!tailer.nextIndex()) {
+                            complete = !overflowed;
+                            closed = true;
+                            break;
+                        }
+                    }
+                }
+                byte[] key = new byte[tailer.readInt()];
+                tailer.readFully(key);
+                byte[] cf = new byte[tailer.readInt()];
+                tailer.readFully(cf);
+                tailer.finish();
+                int stripe = (ByteBuffer.wrap(key).hashCode() & Integer.MAX_VALUE) % THREADS;
+                List<Entry> batch = batches.get(stripe);
+                batch.add(new Entry(key, cf));
+                if (batch.size() >= BATCH_SIZE) {
+                    submit(stripes[stripe], inFlight, index, batch);
+                    batches.set(stripe, new ArrayList<Entry>(BATCH_SIZE));
+                }
+                replayed++;
+                if (System.currentTimeMillis() - lastLogged > PROGRESS_INTERVAL_MS) {
+                    lastLogged = System.currentTimeMillis();
+                    logger.warn("Replayed {} of {} journaled rows for {}", replayed, rows, index.getIndexName());
+                }
+            }
+            tailer.close();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (ExecutorService stripe : stripes) {
+                stripe.shutdown();
+            }
+            for (ExecutorService stripe : stripes) {
+                try {
+                    stripe.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        logger.warn("Replayed {} journaled rows for {}", replayed, index.getIndexName());
+        return complete;
+    }
+
+    private void submit(ExecutorService stripe, final Semaphore inFlight, final PerRowSecondaryIndex index, final List<Entry> batch) throws InterruptedException {
+        inFlight.acquire();
+        stripe.execute(new Runnable() {
+            @Override
+            public void run() {
+                replaying.set(Boolean.TRUE);
+                try {
+                    for (Entry entry : batch) {
+                        try {
+                            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.cf));
+                            ColumnFamily cf = ColumnFamily.serializer.deserialize(in, MessagingService.current_version);
+                            index.index(ByteBuffer.wrap(entry.rowKey), cf);
+                        } catch (Exception e) {
+                            logger.error("Could not index journaled row", e);
+                        }
+                    }
+                } finally {
+                    replaying.remove();
+                    inFlight.release();
+                }
+            }
+        });
+    }
+}
@@ -23,12 +23,18 @@ import org.apache.lucene.index.NumericDocValues;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.FieldValueHitQueue;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -50,25 +56,82 @@ public class IndexEntryCollector extends Collector {
     SortedDocValues pkNames;
     SortedDocValues rowKeys;
     NumericDocValues timeStamps;
+    //the sort values of the cursor to collect after, and one slot comparators to compare docs with them
+    final Object[] after;
+    FieldComparator<?>[] afterComparators;
 
 
     public IndexEntryCollector(org.apache.lucene.search.SortField[] sortFields, int maxResults) throws IOException {
+        this(sortFields, maxResults, null);
+    }
+
+    /**
+     * @param after the sort values of the last entry of the previous page, null for the first page.
+     */
+    public IndexEntryCollector(org.apache.lucene.search.SortField[] sortFields, int maxResults, Object[] after) throws IOException {
         if (sortFields == null) {
-            hitQueue = FieldValueHitQueue.create(new org.apache.lucene.search.SortField[]{org.apache.lucene.search.SortField.FIELD_SCORE}, maxResults);
-        } else {
-            hitQueue = FieldValueHitQueue.create(sortFields, maxResults);
+            sortFields = new org.apache.lucene.search.SortField[]{org.apache.lucene.search.SortField.FIELD_SCORE};
         }
+        hitQueue = FieldValueHitQueue.create(sortFields, maxResults);
         comparators = hitQueue.getComparators();
         numHits = maxResults;
         reverseMul = hitQueue.getReverseMul();
-
+        this.after = after;
+        if (after != null) {
+            if (after.length != sortFields.length)
+                throw new IllegalArgumentException("The cursor does not match the sort of the search");
+            afterComparators = new FieldComparator<?>[sortFields.length];
+            for (int i = 0; i < sortFields.length; i++) {
+                afterComparators[i] = sortFields[i].getComparator(1, i);
+            }
+        }
     }
 
+    /**
+     * @return the collected entries, best first, each with the values it was sorted by.
+     */
     public List<IndexEntry> docs() {
-        List<IndexEntry> indexEntries = new ArrayList<>();
-        IndexEntry entry;
-        while ((entry = hitQueue.pop()) != null) {
-            indexEntries.add(entry);
+        //the queue pops the least competitive entry first
+        IndexEntry[] indexEntries = new IndexEntry[hitQueue.size()];
+        for (int i = indexEntries.length - 1; i >= 0; i--) {
+            IndexEntry entry = hitQueue.pop();
+            Object[] values = new Object[comparators.length];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = comparators[j].value(entry.slot);
+            }
+            entry.sortValues = values;
+            indexEntries[i] = entry;
+        }
+        return Arrays.asList(indexEntries);
+    }
+
+    /**
+     * Merges the top entries of collectors which searched separate indexes with the same sort, as when
+     * each vnode is searched on its own.
+     *
+     * @return the top maxResults entries of all the collectors, best first.
+     */
+    public static List<IndexEntry> merge(org.apache.lucene.search.SortField[] sortFields, int maxResults, List<IndexEntryCollector> collectors) throws IOException {
+        Sort sort = new Sort(sortFields == null ? new org.apache.lucene.search.SortField[]{org.apache.lucene.search.SortField.FIELD_SCORE} : sortFields);
+        TopDocs[] shardHits = new TopDocs[collectors.size()];
+        List<List<IndexEntry>> shardEntries = new ArrayList<>(collectors.size());
+        for (int shard = 0; shard < collectors.size(); shard++) {
+            IndexEntryCollector collector = collectors.get(shard);
+            List<IndexEntry> entries = collector.docs();
+            FieldDoc[] fieldDocs = new FieldDoc[entries.size()];
+            for (int i = 0; i < fieldDocs.length; i++) {
+                IndexEntry entry = entries.get(i);
+                fieldDocs[i] = new FieldDoc(entry.doc, entry.score, entry.sortValues);
+            }
+            shardHits[shard] = new TopFieldDocs(collector.totalHits, fieldDocs, sort.getSort(), Float.NaN);
+            shardEntries.add(entries);
+        }
+        TopDocs merged = TopDocs.merge(sort, maxResults, shardHits);
+        //the merge takes the hits of each shard in order
+        int[] taken = new int[collectors.size()];
+        List<IndexEntry> indexEntries = new ArrayList<>(merged.scoreDocs.length);
+        for (ScoreDoc scoreDoc : merged.scoreDocs) {
+            indexEntries.add(shardEntries.get(scoreDoc.shardIndex).get(taken[scoreDoc.shardIndex]++));
         }
         return indexEntries;
     }
@@ -79,6 +142,11 @@ public class IndexEntryCollector extends Collector {
         for (int i = 0; i < comparators.length; i++) {
             hitQueue.setComparator(i, comparators[i].setNextReader(context));
         }
+        if (after != null) {
+            for (int i = 0; i < afterComparators.length; i++) {
+                afterComparators[i] = afterComparators[i].setNextReader(context);
+            }
+        }
         pkNames = Fields.getPKDocValues(context.reader());
         rowKeys = Fields.getRKDocValues(context.reader());
         timeStamps = Fields.getTSDocValues(context.reader());
@@ -95,11 +163,18 @@ public class IndexEntryCollector extends Collector {
         for (int i = 0; i < comparators.length; i++) {
             comparators[i].setScorer(scorer);
         }
+        if (after != null) {
+            for (FieldComparator<?> comparator : afterComparators) {
+                comparator.setScorer(scorer);
+            }
+        }
         this.scorer = scorer;
     }
 
     @Override
     public void collect(int doc) throws IOException {
+        //docs up to the cursor were returned in earlier pages
+        if (after != null && !isAfter(doc)) return;
         ++totalHits;
         if (queueFull) {
             // Fastmatch: return if this hit is not competitive
@@ -151,10 +226,23 @@ public class IndexEntryCollector extends Collector {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private boolean isAfter(int doc) throws IOException {
+        for (int i = 0; i < afterComparators.length; i++) {
+            FieldComparator<Object> comparator = (FieldComparator<Object>) afterComparators[i];
+            comparator.copy(0, doc);
+            int c = reverseMul[i] * comparator.compareValues(comparator.value(0), after[i]);
+            if (c > 0) return true;
+            if (c < 0) return false;
+        }
+        //the entry of the cursor itself
+        return false;
+    }
+
     final void updateBottom(int slot, int doc, float score) throws IOException {
         hitQueue.pop();
-        bottom = getIndexEntry(slot, doc, score);
-        hitQueue.add(bottom);
+        //the new entry need not be the least competitive one
+        bottom = hitQueue.add(getIndexEntry(slot, doc, score));
     }
 
     final void add(int slot, int doc, float score) throws IOException {
@@ -177,6 +265,8 @@ public class IndexEntryCollector extends Collector {
         public final ByteBuffer rowKey;
         public final long timestamp;
         public float score;
+        //the values this entry was sorted by, filled in once collecting is done
+        public Object[] sortValues;
 
 
         public IndexEntry(String pkName, ByteBuffer rowKey, long timestamp, int slot, int doc, float score) {
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.lucene.BufferedIndexer;
+import com.tuplejump.stargate.lucene.Indexer;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.RowPosition;
+import org.apache.cassandra.db.filter.SliceQueryFilter;
+import org.apache.cassandra.dht.AbstractBounds;
+import org.apache.cassandra.dht.Bounds;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.dht.Token;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.thrift.IndexExpression;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds an index from the rows of its table with one task per local token range, in place of the
+ * single threaded secondary index builder of Cassandra. Each task pages through the columns of its range
+ * and writes them to the indexer of the range in batches, so a wide partition is not read all at once. Refreshes are paused while building, so the
+ * indexers are refreshed and committed once at the end.
+ * The table is flushed before the build, and only the partitions in its sstables then are written, as the partitions
+ * written since are indexed as they are written. Progress is logged in partitions, as the size of the table is estimated in.
+ * The number of threads and the columns read per batch are set using the sg.rebuild.threads and sg.rebuild.batch system properties.
+ */
+public class IndexRebuilder {
+    protected static final Logger logger = LoggerFactory.getLogger(IndexRebuilder.class);
+
+    public static final int THREADS = Integer.getInteger("sg.rebuild.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    public static final int BATCH_SIZE = Integer.getInteger("sg.rebuild.batch", 1000);
+
+    private static final long PROGRESS_INTERVAL_MS = 10000;
+
+    private static final List<IndexExpression> NO_EXPRESSIONS = Collections.emptyList();
+
+    private final ColumnFamilyStore table;
+    private final RowIndexSupport rowIndexSupport;
+    private final String indexName;
+    private final AtomicLong partitions = new AtomicLong();
+    private final AtomicInteger rangesDone = new AtomicInteger();
+    private long started;
+    private long estimatedPartitions;
+    private Collection<SSTableReader> sstables;
+    private int ranges;
+    private volatile long lastLogged;
+
+    public IndexRebuilder(ColumnFamilyStore table, RowIndexSupport rowIndexSupport, String indexName) {
+        this.table = table;
+        this.rowIndexSupport = rowIndexSupport;
+        this.indexName = indexName;
+    }
+
+    /**
+     * Writes all the rows of the given ranges to their indexers and blocks till done.
+     *
+     * @param indexers the indexers by non wrapping local range.
+     */
+    public void rebuild(Map<Range<Token>, Indexer> indexers) {
+        started = System.currentTimeMillis();
+        estimatedPartitions = Math.max(1, table.estimateKeys());
+        sstables = table.markCurrentSSTablesReferenced();
+        ranges = indexers.size();
+        lastLogged = started;
+        logger.warn("Rebuilding {} over {} ranges with {} threads", indexName, ranges, THREADS);
+        Set<Indexer> distinct = new LinkedHashSet<>(indexers.values());
+        for (Indexer indexer : distinct) {
+            indexer.pauseRefreshes();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, new NamedThreadFactory("SGRebuild"));
+        try {
+            List<Future<?>> tasks = new ArrayList<>(ranges);
+            for (final Map.Entry<Range<Token>, Indexer> entry : indexers.entrySet()) {
+                tasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        rebuild(entry.getKey(), entry.getValue());
+                        rangesDone.incrementAndGet();
+                        logProgress();
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+            SSTableReader.releaseReferences(sstables);
+            for (Indexer indexer : distinct) {
+                indexer.resumeRefreshes();
+                indexer.commit();
+            }
+        }
+        long tookMs = Math.max(1, System.currentTimeMillis() - started);
+        logger.warn("Rebuilt {} with {} partitions in {} s ({} partitions/s)", indexName, partitions.get(), TimeUnit.MILLISECONDS.toSeconds(tookMs), partitions.get() * 1000 / tookMs);
+    }
+
+    private void rebuild(Range<Token> range, Indexer indexer) {
+        AbstractBounds<RowPosition> bounds = range.toRowBounds();
+        //the first column to read of the first partition of the page
+        ByteBuffer start = ByteBufferUtil.EMPTY_BYTE_BUFFER;
+        int batchSize = BATCH_SIZE;
+        BufferedIndexer bufferedIndexer = new BufferedIndexer(indexer);
+        //the partition counted last, which goes on in the next page when it is wider than a page
+        DecoratedKey counted = null;
+        while (true) {
+            //pages by columns, so that wide partitions are read a batch at a time
+            SliceQueryFilter filter = new SliceQueryFilter(start, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, batchSize);
+            List<Row> page = table.getRangeSlice(bounds, NO_EXPRESSIONS, filter, batchSize, System.currentTimeMillis(), false, true);
+            int columns = 0;
+            for (Row row : page) {
+                if (row.cf != null) columns += row.cf.getColumnCount();
+            }
+            boolean last = columns < batchSize;
+            Row tail = page.isEmpty() ? null : page.get(page.size() - 1);
+            ByteBuffer tailStart = null;
+            if (!last && tail.cf != null && tail.cf.getColumnCount() > 0) {
+                //the last CQL row of a full page may go on in the next page, so it is read again whole from its start
+                tailStart = rowIndexSupport.rowStart(tail.cf.getReverseSortedColumns().iterator().next().name());
+                ColumnFamily head = tail.cf.cloneMeShallow();
+                for (Column column : tail.cf) {
+                    if (rowIndexSupport.rowStart(column.name()).equals(tailStart)) break;
+                    head.addColumn(column);
+                }
+                if (page.size() == 1 && head.getColumnCount() == 0) {
+                    //one CQL row wider than the batch
+                    batchSize *= 2;
+                    continue;
+                }
+                page = new ArrayList<>(page);
+                page.set(page.size() - 1, new Row(tail.key, head));
+            }
+            for (Row row : page) {
+                if (row.cf == null || row.cf.getColumnCount() == 0 || !flushed(row.key)) continue;
+                if (!row.key.equals(counted)) {
+                    partitions.incrementAndGet();
+                    counted = row.key;
+                }
+                try {
+                    rowIndexSupport.indexRow(bufferedIndexer, row.key.key, row.cf);
+                } catch (Exception e) {
+                    logger.error("Could not index row", e);
+                }
+            }
+            bufferedIndexer.flush();
+            logProgress();
+            if (last || tail == null) break;
+            batchSize = BATCH_SIZE;
+            if (tailStart != null) {
+                //the next page starts with the CQL row held back from this one
+                bounds = new Bounds<RowPosition>(tail.key, bounds.right);
+                start = tailStart;
+            } else {
+                bounds = new Range<RowPosition>(tail.key, bounds.right);
+                start = ByteBufferUtil.EMPTY_BYTE_BUFFER;
+            }
+        }
+    }
+
+    /**
+     * @return true if the partition was in the sstables when the build started.
+     */
+    private boolean flushed(DecoratedKey key) {
+        for (SSTableReader sstable : sstables) {
+            if (sstable.getPosition(key, SSTableReader.Operator.EQ, false) != null) return true;
+        }
+        return false;
+    }
+
+    private void logProgress() {
+        long now = System.currentTimeMillis();
+        if (now - lastLogged < PROGRESS_INTERVAL_MS && rangesDone.get() < ranges) return;
+        lastLogged = now;
+        long done = partitions.get();
+        long tookMs = Math.max(1, now - started);
+        logger.warn("Rebuilding {} - {}% - {} of {} ranges - {} partitions/s", indexName, Math.min(100, done * 100 / estimatedPartitions),
+                rangesDone.get(), ranges, done * 1000 / tookMs);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.lucene.Options;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.ColumnDefinition;
+import org.apache.cassandra.cql3.CFDefinition;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.document.FieldType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A lookup of the indexed regular columns of a table, keyed by the bytes of their CQL names.
+ * It is built once from the Options, so telling whether a column is indexed and how does not
+ * decode the column name to a String. Names are matched in place in the column name buffer.
+ */
+public class IndexedColumns {
+
+    private static final int STATIC_MARKER = 0xFFFF;
+
+    /**
+     * An indexed column along with the field types to index it with.
+     */
+    public static class IndexedColumn {
+        //the name used in the Options
+        public final String name;
+        public final ColumnDefinition definition;
+        public final boolean isObject;
+        public final FieldType fieldType;
+        public final FieldType[] collectionFieldTypes;
+        private final byte[] nameBytes;
+        private final int hash;
+
+        IndexedColumn(String name, ColumnDefinition definition, Options options) {
+            this.name = name;
+            this.definition = definition;
+            this.isObject = options.isObject(name);
+            this.fieldType = options.fieldTypes.get(name);
+            this.collectionFieldTypes = options.collectionFieldTypes.get(name);
+            this.nameBytes = ByteBufferUtil.getArray(definition.name);
+            this.hash = hash(definition.name, definition.name.position(), definition.name.remaining());
+        }
+
+        private boolean matches(ByteBuffer buf, int offset, int length) {
+            if (length != nameBytes.length) return false;
+            for (int i = 0; i < length; i++) {
+                if (buf.get(offset + i) != nameBytes[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private final IndexedColumn[] slots;
+    private final int mask;
+
+    public IndexedColumns(Options options, CFMetaData metadata) {
+        List<IndexedColumn> columns = new ArrayList<>();
+        for (ColumnDefinition definition : metadata.regularAndStaticColumns()) {
+            String columnName = CFDefinition.definitionType.getString(definition.name).trim();
+            for (String fieldName : options.getFields().keySet()) {
+                if (columnName.equalsIgnoreCase(fieldName.trim())) {
+                    columns.add(new IndexedColumn(fieldName, definition, options));
+                    break;
+                }
+            }
+        }
+        int size = Integer.highestOneBit(Math.max(1, columns.size()) * 4);
+        slots = new IndexedColumn[size];
+        mask = size - 1;
+        for (IndexedColumn column : columns) {
+            int slot = column.hash & mask;
+            while (slots[slot] != null) slot = (slot + 1) & mask;
+            slots[slot] = column;
+        }
+    }
+
+    /**
+     * @param name the CQL name of a column.
+     * @return the indexed column, or null if the column is not indexed.
+     */
+    public IndexedColumn get(ByteBuffer name) {
+        return get(name, name.position(), name.remaining());
+    }
+
+    /**
+     * @param cellName the composite name of a column as stored.
+     * @param nameIdx  the position of the CQL name among the components.
+     * @return the indexed column, or null if the column is not indexed.
+     */
+    public IndexedColumn getFromCellName(ByteBuffer cellName, int nameIdx) {
+        int pos = nameOffset(cellName, nameIdx);
+        if (pos < 0) return null;
+        return get(cellName, pos + 2, cellName.getShort(pos) & 0xFFFF);
+    }
+
+    /**
+     * @param cellName the composite name of a column as stored.
+     * @param nameIdx  the position of the CQL name among the components.
+     * @param name     the CQL name to compare with.
+     * @return true if the column has the given CQL name, compared in place.
+     */
+    public static boolean isNamed(ByteBuffer cellName, int nameIdx, ByteBuffer name) {
+        int pos = nameOffset(cellName, nameIdx);
+        if (pos < 0) return false;
+        int length = cellName.getShort(pos) & 0xFFFF;
+        if (length != name.remaining()) return false;
+        for (int i = 0; i < length; i++) {
+            if (cellName.get(pos + 2 + i) != name.get(name.position() + i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the position of the length of the CQL name component, or -1 if the cell name is too short.
+     */
+    private static int nameOffset(ByteBuffer cellName, int nameIdx) {
+        int pos = cellName.position();
+        int end = cellName.limit();
+        if (end - pos >= 2 && (cellName.getShort(pos) & 0xFFFF) == STATIC_MARKER) pos += 2;
+        for (int i = 0; i < nameIdx; i++) {
+            if (end - pos < 2) return -1;
+            //length, bytes and the end of component byte
+            pos += 2 + (cellName.getShort(pos) & 0xFFFF) + 1;
+        }
+        if (end - pos < 2) return -1;
+        int length = cellName.getShort(pos) & 0xFFFF;
+        if (pos + 2 + length > end) return -1;
+        return pos;
+    }
+
+    private IndexedColumn get(ByteBuffer buf, int offset, int length) {
+        int slot = hash(buf, offset, length) & mask;
+        IndexedColumn column;
+        while ((column = slots[slot]) != null) {
+            if (column.matches(buf, offset, length)) return column;
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private static int hash(ByteBuffer buf, int offset, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buf.get(offset + i);
+        }
+        return h ^ (h >>> 16);
+    }
+}
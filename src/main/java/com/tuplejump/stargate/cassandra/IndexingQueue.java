@@ -0,0 +1,223 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.lucene.BufferedIndexer;
+import com.tuplejump.stargate.lucene.Indexer;
+import com.tuplejump.stargate.lucene.IndexingOptions;
+import org.apache.cassandra.concurrent.DebuggableScheduledThreadPoolExecutor;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.lucene.index.Term;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of mutations for one vnode indexer. Rows and the deletes of rows are queued alike, so that
+ * they reach the index in the order they were made.
+ * Mutations are written by a node wide pool of indexing workers in batches of up to batchSize,
+ * waiting up to lingerMs for a batch to fill. When the queue is full the mutation thread blocks till the workers catch up.
+ * The number of workers is set using the sg.indexing.threads system property.
+ */
+public class IndexingQueue {
+    protected static final Logger logger = LoggerFactory.getLogger(IndexingQueue.class);
+
+    public static final int WORKERS = Integer.getInteger("sg.indexing.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    static final ScheduledExecutorService workers = new DebuggableScheduledThreadPoolExecutor(WORKERS, "SGIndexingWorker", Thread.NORM_PRIORITY);
+
+    private static final int IDLE = 0;
+    private static final int LINGERING = 1;
+    private static final int RUNNING = 2;
+
+    protected final Indexer indexer;
+    protected final RowIndexSupport rowIndexSupport;
+    protected final int batchSize;
+    protected final long lingerMs;
+    protected final BlockingQueue<Mutation> queue;
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    //the mutations put on the queue, and the ones written or dropped since, so that a flush knows when it is done
+    private final AtomicLong queued = new AtomicLong();
+    private final Object writtenLock = new Object();
+    private long written;
+    //the flushes waiting on the workers, which write what is queued without lingering while there are any
+    private final AtomicInteger flushes = new AtomicInteger();
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable lingerTask = new Runnable() {
+        @Override
+        public void run() {
+            //a full batch may have already taken over
+            if (state.compareAndSet(LINGERING, RUNNING)) drain();
+        }
+    };
+
+    static class Mutation {
+        final ByteBuffer rowKey;
+        final ColumnFamily cf;
+        //the terms of the documents to delete, when this is a delete
+        final Term[] deleteTerms;
+
+        Mutation(ByteBuffer rowKey, ColumnFamily cf) {
+            this.rowKey = rowKey.duplicate();
+            this.cf = cf;
+            this.deleteTerms = null;
+        }
+
+        Mutation(Term[] deleteTerms) {
+            this.rowKey = null;
+            this.cf = null;
+            this.deleteTerms = deleteTerms;
+        }
+    }
+
+    public IndexingQueue(Indexer indexer, RowIndexSupport rowIndexSupport, IndexingOptions indexingOptions) {
+        this.indexer = indexer;
+        this.rowIndexSupport = rowIndexSupport;
+        this.batchSize = indexingOptions.getBatchSize();
+        this.lingerMs = indexingOptions.getLingerMs();
+        this.queue = new ArrayBlockingQueue<>(indexingOptions.getQueueDepth());
+    }
+
+    /**
+     * Queues a row for indexing. Blocks if the queue is full.
+     *
+     * @param rowKey The shard key for this row.
+     * @param cf     the row to write.
+     */
+    public void add(ByteBuffer rowKey, ColumnFamily cf) {
+        put(new Mutation(rowKey, cf));
+    }
+
+    /**
+     * Queues a delete behind the rows queued before it. Blocks if the queue is full.
+     *
+     * @param terms the terms all of which a document must have to be deleted.
+     */
+    public void delete(Term... terms) {
+        put(new Mutation(terms));
+    }
+
+    private void put(Mutation mutation) {
+        try {
+            queue.put(mutation);
+            queued.incrementAndGet();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (queue.size() >= batchSize || flushes.get() > 0) {
+            if (state.compareAndSet(IDLE, RUNNING) || state.compareAndSet(LINGERING, RUNNING))
+                workers.execute(drainTask);
+        } else if (state.compareAndSet(IDLE, LINGERING)) {
+            workers.schedule(lingerTask, lingerMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void drain() {
+        List<Mutation> batch = new ArrayList<>(batchSize);
+        try {
+            queue.drainTo(batch, batchSize);
+            write(batch);
+        } finally {
+            written(batch.size());
+            state.set(IDLE);
+            //pick up mutations which came in while this batch was being written
+            if (!queue.isEmpty()) schedule();
+        }
+    }
+
+    private void write(List<Mutation> batch) {
+        BufferedIndexer bufferedIndexer = new BufferedIndexer(indexer);
+        for (Mutation mutation : batch) {
+            try {
+                if (mutation.deleteTerms != null) {
+                    bufferedIndexer.delete(mutation.deleteTerms);
+                } else {
+                    rowIndexSupport.indexRow(bufferedIndexer, mutation.rowKey, mutation.cf);
+                }
+            } catch (Exception e) {
+                logger.error("Could not index row", e);
+            }
+        }
+        try {
+            bufferedIndexer.flush();
+        } catch (Exception e) {
+            logger.error("Could not index batch of " + batch.size() + " rows", e);
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Indexed batch of {} rows", batch.size());
+    }
+
+    /**
+     * Blocks till all the rows queued so far are written to the indexer.
+     */
+    public void flush() {
+        long target = queued.get();
+        flushes.incrementAndGet();
+        try {
+            //cut short a batch lingering for more rows
+            if (state.compareAndSet(IDLE, RUNNING) || state.compareAndSet(LINGERING, RUNNING))
+                workers.execute(drainTask);
+            synchronized (writtenLock) {
+                while (written < target) writtenLock.wait();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            flushes.decrementAndGet();
+        }
+    }
+
+    /**
+     * Drops the rows and deletes which are yet to be written.
+     */
+    public void clear() {
+        List<Mutation> dropped = new ArrayList<>();
+        queue.drainTo(dropped);
+        written(dropped.size());
+    }
+
+    private void written(int mutations) {
+        synchronized (writtenLock) {
+            written += mutations;
+            writtenLock.notifyAll();
+        }
+    }
+
+    public int size() {
+        return queue.size();
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.tuplejump.stargate.cassandra;
 
+import com.tuplejump.stargate.Constants;
 import com.tuplejump.stargate.Fields;
 import com.tuplejump.stargate.Utils;
 import com.tuplejump.stargate.lucene.Indexer;
@@ -30,16 +31,24 @@ import org.apache.cassandra.db.Column;
 import org.apache.cassandra.db.ColumnFamily;
 import org.apache.cassandra.db.ColumnFamilyStore;
 import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.RangeTombstone;
 import org.apache.cassandra.db.marshal.*;
+import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.Pair;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Field;
+import com.google.common.util.concurrent.Striped;
 import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 
 /**
  * User: satya
@@ -47,16 +56,61 @@ import java.util.*;
  */
 public class RowIndexSupport {
     protected static final Logger logger = LoggerFactory.getLogger(RowIndexSupport.class);
+    /**
+     * Upserts of a partition read its rows and then replace their documents, so they are made one at a time
+     * under a lock striped by partition. The number of stripes is set using the sg.upsert.locks system property.
+     */
+    private static final Striped<Lock> upsertLocks = Striped.lock(Integer.getInteger("sg.upsert.locks", 1024));
     protected Options options;
     protected ColumnFamilyStore table;
     FieldType tsFieldType;
+    protected IndexedColumns indexedColumns;
+    private volatile TableLayout layout;
+    private final ThreadLocal<RowDocuments> rowDocuments = new ThreadLocal<RowDocuments>() {
+        @Override
+        protected RowDocuments initialValue() {
+            return new RowDocuments();
+        }
+    };
 
     public RowIndexSupport(Options options, ColumnFamilyStore table) {
         this.options = options;
         this.table = table;
         tsFieldType = Properties.fieldType(Properties.ID_FIELD, CQL3Type.Native.BIGINT.getType());
+        indexedColumns = new IndexedColumns(options, table.metadata);
+    }
+
+    /**
+     * @param name the composite name of a column as stored.
+     * @return the indexed column it belongs to, or null if it is not indexed.
+     */
+    public IndexedColumns.IndexedColumn indexedColumn(ByteBuffer name) {
+        return indexedColumns.getFromCellName(name, layout().nameIdx);
+    }
+
+
+    /**
+     * @param name    the composite name of a column as stored.
+     * @param cqlName the CQL name of a column of the table.
+     * @return true if the column is the one with the given CQL name.
+     */
+    public boolean isColumn(ByteBuffer name, ByteBuffer cqlName) {
+        return IndexedColumns.isNamed(name, layout().nameIdx, cqlName);
     }
 
+    /**
+     * @param name the composite name of a column as stored.
+     * @return the name the columns of its CQL row start from, so that the row can be read again from its first column.
+     */
+    public ByteBuffer rowStart(ByteBuffer name) {
+        TableLayout layout = layout();
+        ByteBuffer[] components = layout.comparator.split(name);
+        CompositeType.Builder prefix = new CompositeType.Builder(layout.comparator);
+        for (int i = 0; i < Math.min(layout.prefixSize, components.length); i++) {
+            prefix.add(components[i]);
+        }
+        return prefix.build();
+    }
 
     /**
      * Writes one row to the lucene index.
@@ -66,130 +120,347 @@ public class RowIndexSupport {
      */
 
     public void indexRow(Indexer indexer, ByteBuffer rowKey, ColumnFamily cf) {
-        Map<ByteBuffer, List<Field>> primaryKeysVsFields = new HashMap<>();
-        DecoratedKey dk = table.partitioner.decorateKey(rowKey);
-        Map<ByteBuffer, Long> timestamps = new HashMap<>();
-        AbstractType rowKeyValidator = table.getComparator();
-        Iterator<Column> cols = cf.iterator();
-        Map<ByteBuffer, String> pkNames = new HashMap<>();
-        while (cols.hasNext()) {
-            Column column = cols.next();
-            addColumn(rowKey, pkNames, primaryKeysVsFields, timestamps, column);
+        TableLayout layout = layout();
+        RowDocuments row = rowDocuments.get();
+        row.reset(layout, table.partitioner.decorateKey(rowKey));
+        try {
+            for (Column column : cf) {
+                addColumn(layout, row, column);
+            }
+            addToIndex(indexer, cf, layout, row);
+        } finally {
+            row.clear();
         }
-        addToIndex(indexer, cf, dk, pkNames, primaryKeysVsFields, timestamps, rowKeyValidator);
     }
 
-    private void addToIndex(Indexer indexer, ColumnFamily cf, DecoratedKey dk, Map<ByteBuffer, String> pkNames, Map<ByteBuffer, List<Field>> primaryKeysVsFields, Map<ByteBuffer, Long> timestamps, AbstractType rkValValidator) {
-        for (Map.Entry<ByteBuffer, List<Field>> entry : primaryKeysVsFields.entrySet()) {
-            ByteBuffer pk = entry.getKey();
-            String pkName = pkNames.get(pk);
-            List<Field> fields = entry.getValue();
-            Term term = Fields.idTerm(pkName);
+    private void addToIndex(Indexer indexer, ColumnFamily cf, TableLayout layout, RowDocuments row) {
+        boolean upsert = options.primary.getIndexing().isUpsert();
+        if (!upsert) {
+            addToIndex(indexer, cf, layout, row, false);
+            return;
+        }
+        //else a concurrent upsert which read the row before this write could replace its document after this one
+        Lock lock = upsertLocks.get(row.dk);
+        lock.lock();
+        try {
+            addToIndex(indexer, cf, layout, row, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addToIndex(Indexer indexer, ColumnFamily cf, TableLayout layout, RowDocuments row, boolean upsert) {
+        //stale documents are not checked for on reads, so deleted rows are deleted here even when no columns are written
+        if (upsert && cf.isMarkedForDelete()) deleteRows(indexer, cf, layout, row);
+        for (RowDocument doc : row.docs) {
+            Term term = Fields.idTerm(doc.pkName);
 
             if (cf.isMarkedForDelete() && options.collectionFieldTypes.isEmpty()) {
                 if (logger.isDebugEnabled())
-                    logger.debug("Column family marked for delete -" + dk);
+                    logger.debug("Column family marked for delete -" + row.dk);
                 if (logger.isDebugEnabled())
                     logger.debug(String.format("RowIndex delete - Key [%s]", term));
                 indexer.delete(term);
+            } else if (upsert) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Column family upsert -" + row.dk);
+                upsert(indexer, layout, row, doc, term);
             } else {
                 if (logger.isDebugEnabled())
-                    logger.debug("Column family update -" + dk);
-                fields.addAll(idFields(dk, pkName, pk, rkValValidator));
-                fields.addAll(tsFields(timestamps.get(pk)));
-                indexer.insert(fields);
+                    logger.debug("Column family update -" + row.dk);
+                if (indexer.retainsDocuments()) {
+                    //held till the batch is written, so it gets fields of its own
+                    doc.fields.addAll(idFields(row.dk, row.rowKeyString, doc.pkName, doc.pk, layout.comparator));
+                    doc.fields.addAll(tsFields(doc.ts));
+                } else {
+                    row.reused.addTo(doc.fields, row.dk, row.rowKeyString, doc.pkName, doc.pk, doc.ts);
+                }
+                indexer.insert(doc.fields);
             }
         }
     }
 
-    private void addColumn(ByteBuffer rowKey, Map<ByteBuffer, String> pkNames, Map<ByteBuffer, List<Field>> primaryKeysVsFields, Map<ByteBuffer, Long> timestamps, Column column) {
-        ByteBuffer columnNameBuf = column.name();
-        Pair<Pair<CompositeType.Builder, StringBuilder>, String> primaryKeyAndName = primaryKeyAndActualColumnName(true, rowKey, column);
-        String actualColName = primaryKeyAndName.right;
+    /**
+     * Deletes the documents of the partition or the CQL rows deleted by the write. Rows written again by the same
+     * write are upserted after this.
+     */
+    private void deleteRows(Indexer indexer, ColumnFamily cf, TableLayout layout, RowDocuments row) {
+        if (cf.deletionInfo().getTopLevelDeletion().markedForDeleteAt != Long.MIN_VALUE) {
+            if (logger.isDebugEnabled())
+                logger.debug("Partition deleted -" + row.dk);
+            indexer.delete(Fields.rkTerm(row.rowKeyString));
+            return;
+        }
+        Iterator<RangeTombstone> tombstones = cf.deletionInfo().rangeIterator();
+        while (tombstones.hasNext()) {
+            ByteBuffer[] components = layout.comparator.split(tombstones.next().min);
+            //overwriting a collection deletes only the columns of the collection
+            if (components.length > layout.prefixSize) continue;
+            int prefix = components.length;
+            StringBuilder sb = new StringBuilder(row.rowKeyString);
+            for (int i = 0; i < prefix; i++) {
+                sb.append(':').append(layout.types.get(i).compose(components[i]));
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("CQL rows deleted -" + sb);
+            if (prefix == 0) {
+                indexer.delete(Fields.rkTerm(row.rowKeyString));
+            } else if (prefix == layout.prefixSize) {
+                indexer.delete(Fields.idTerm(sb.toString()));
+            } else {
+                //a delete by the first clustering columns removes all the rows under them
+                indexer.delete(new PrefixQuery(Fields.idTerm(sb.append(':').toString())));
+            }
+        }
+    }
+
+    /**
+     * Reads the CQL row as it is after this write and replaces its document with one made from all of its columns,
+     * so that a partial update does not leave the earlier document of the row in the index.
+     */
+    private void upsert(Indexer indexer, TableLayout layout, RowDocuments row, RowDocument doc, Term term) {
+        CompositeType.Builder prefix = new CompositeType.Builder(layout.comparator);
+        for (int i = 0; i < doc.prefix; i++) {
+            prefix.add(doc.components[i]);
+        }
+        long now = System.currentTimeMillis();
+        ColumnFamily current = table.getColumnFamily(row.dk, prefix.build(), prefix.buildAsEndOfRange(), false, Integer.MAX_VALUE, now);
+        RowDocuments merged = new RowDocuments();
+        merged.reset(layout, row.dk);
+        if (current != null) {
+            for (Column column : current) {
+                if (column.isMarkedForDelete(now) || current.deletionInfo().isDeleted(column)) continue;
+                addColumn(layout, merged, column);
+            }
+        }
+        if (merged.docs.isEmpty()) {
+            //all the columns of the row are gone
+            indexer.delete(term);
+            return;
+        }
+        for (RowDocument mergedDoc : merged.docs) {
+            //upserts are written right away, even by a buffered indexer
+            row.reused.addTo(mergedDoc.fields, row.dk, row.rowKeyString, mergedDoc.pkName, mergedDoc.pk, mergedDoc.ts);
+            indexer.upsert(mergedDoc.fields, Fields.idTerm(mergedDoc.pkName));
+        }
+    }
+
+    private void addColumn(TableLayout layout, RowDocuments row, Column column) {
+        ByteBuffer[] components = layout.comparator.split(column.name());
+        IndexedColumns.IndexedColumn indexed = indexedColumns.get(components[layout.nameIdx]);
         if (logger.isTraceEnabled())
-            logger.trace("Got column name {} from CF", actualColName);
-        Pair<CompositeType.Builder, StringBuilder> builders = primaryKeyAndName.left;
-        ByteBuffer primaryKey = builders.left.build();
-        pkNames.put(primaryKey, builders.right.toString());
-        List<Field> fields = primaryKeysVsFields.get(primaryKey);
-        if (fields == null) {
+            logger.trace("Got column name {} from CF", CFDefinition.definitionType.getString(components[layout.nameIdx]));
+        //the columns of a CQL row are next to each other, so a new prefix is a new document
+        RowDocument doc = row.current(components, layout.prefixSize);
+        if (doc == null) {
             // new pk found
             if (logger.isTraceEnabled()) {
                 logger.trace("New PK found");
             }
-            fields = new LinkedList<>();
-            primaryKeysVsFields.put(primaryKey, fields);
-            timestamps.put(primaryKey, 0l);
-            CFDefinition cfDef = table.metadata.getCfDef();
-
-            //fields for partition key columns need to be added.
-            addPartitionKeyFields(rowKey, timestamps, column, primaryKey, fields, cfDef);
-
-            //fields for clustering key columns need to be added.
-            addClusteringKeyFields(options.clusteringKeysIndexed, primaryKey, fields, timestamps, column, builders.left);
+            doc = newDocument(layout, row, column, components);
         }
-        ColumnDefinition columnDefinition = table.metadata.getColumnDefinitionFromColumnName(columnNameBuf);
-        if (options.shouldIndex(actualColName)) {
-            long existingTS = timestamps.get(primaryKey);
-            timestamps.put(primaryKey, Math.max(existingTS, column.maxTimestamp()));
-            addFields(column, actualColName, fields, columnDefinition);
+        if (indexed != null) {
+            doc.ts = Math.max(doc.ts, column.maxTimestamp());
+            addFields(column, indexed, doc.fields, components);
         }
     }
 
-    private void addPartitionKeyFields(ByteBuffer rowKey, Map<ByteBuffer, Long> timestamps, Column column, ByteBuffer primaryKey, List<Field> fields, CFDefinition cfDef) {
-        ByteBuffer[] keyComponents = cfDef.hasCompositeKey ? ((CompositeType) table.metadata.getKeyValidator()).split(rowKey) : new ByteBuffer[]{rowKey};
-        for (Map.Entry<Integer, Pair<String, ByteBuffer>> entry : options.partitionKeysIndexed.entrySet()) {
-            ByteBuffer value = keyComponents[entry.getKey()];
-            addKeyField(primaryKey, fields, timestamps, column, entry, value);
+    private RowDocument newDocument(TableLayout layout, RowDocuments row, Column column, ByteBuffer[] components) {
+        CompositeType.Builder builder = new CompositeType.Builder(layout.comparator);
+        builder.add(row.rowKey);
+        StringBuilder sb = new StringBuilder(row.rowKeyString);
+        int prefix = Math.min(layout.prefixSize, components.length);
+        for (int i = 0; i < prefix; i++) {
+            builder.add(components[i]);
+            sb.append(':').append(layout.types.get(i).compose(components[i]));
+        }
+        RowDocument doc = new RowDocument(builder.build(), sb.toString(), components, prefix);
+        row.add(doc, components, prefix);
+
+        //fields for partition key columns need to be added.
+        if (!options.partitionKeysIndexed.isEmpty()) {
+            ByteBuffer[] keyComponents = row.keyComponents(layout);
+            for (Map.Entry<Integer, Pair<String, ByteBuffer>> entry : options.partitionKeysIndexed.entrySet()) {
+                addKeyField(doc, column, entry, keyComponents[entry.getKey()]);
+            }
         }
-    }
 
-    private void addClusteringKeyFields(Map<Integer, Pair<String, ByteBuffer>> keyFields, ByteBuffer primaryKey, List<Field> fields, Map<ByteBuffer, Long> timestamps, Column column, CompositeType.Builder builder) {
-        for (Map.Entry<Integer, Pair<String, ByteBuffer>> entry : keyFields.entrySet()) {
-            ByteBuffer value = builder.get(entry.getKey());
-            addKeyField(primaryKey, fields, timestamps, column, entry, value);
+        //fields for clustering key columns need to be added.
+        for (Map.Entry<Integer, Pair<String, ByteBuffer>> entry : options.clusteringKeysIndexed.entrySet()) {
+            addKeyField(doc, column, entry, builder.get(entry.getKey()));
         }
+        return doc;
     }
 
-    private void addKeyField(ByteBuffer primaryKey, List<Field> fields, Map<ByteBuffer, Long> timestamps, Column column, Map.Entry<Integer, Pair<String, ByteBuffer>> entry, ByteBuffer value) {
+    private void addKeyField(RowDocument doc, Column column, Map.Entry<Integer, Pair<String, ByteBuffer>> entry, ByteBuffer value) {
         ByteBuffer keyColumn = entry.getValue().right;
         ColumnDefinition columnDefinition = table.metadata.getColumnDefinition(keyColumn);
         String keyColumnName = entry.getValue().left;
         FieldType fieldType = options.fieldTypes.get(keyColumnName);
-        long existingTS = timestamps.get(primaryKey);
-        timestamps.put(primaryKey, Math.max(existingTS, column.maxTimestamp()));
-        addField(fields, columnDefinition, keyColumnName, fieldType, value);
+        doc.ts = Math.max(doc.ts, column.maxTimestamp());
+        addField(doc.fields, columnDefinition, keyColumnName, fieldType, value);
     }
 
-    public Pair<Pair<CompositeType.Builder, StringBuilder>, String> primaryKeyAndActualColumnName(boolean withPkBuilder, ByteBuffer rowKey, Column column) {
-        AbstractType<?> rowKeyComparator = table.metadata.getKeyValidator();
-        CompositeType baseComparator = (CompositeType) table.getComparator();
-        CFDefinition cfDef = table.metadata.getCfDef();
-        int prefixSize = baseComparator.types.size() - (cfDef.hasCollections ? 2 : 1);
-        List<AbstractType<?>> types = baseComparator.types;
-        int idx = types.get(types.size() - 1) instanceof ColumnToCollectionType ? types.size() - 2 : types.size() - 1;
-        ByteBuffer[] components = baseComparator.split(column.name());
-        String colName = CFDefinition.definitionType.getString(components[idx]);
-        if (withPkBuilder) {
-            Pair<CompositeType.Builder, StringBuilder> builder = pkBuilder(rowKeyComparator, rowKey, baseComparator, prefixSize, components);
-            return Pair.create(builder, colName);
-        } else {
-            return Pair.create(null, colName);
+    /**
+     * @return the layout of the table, resolved again only when its comparator changes as on adding a collection.
+     */
+    private TableLayout layout() {
+        TableLayout current = layout;
+        if (current == null || current.comparator != table.getComparator()) {
+            current = new TableLayout(table);
+            layout = current;
         }
+        return current;
     }
 
-    private Pair<CompositeType.Builder, StringBuilder> pkBuilder(AbstractType rowKeyComparator, ByteBuffer rowKey, CompositeType baseComparator, int prefixSize, ByteBuffer[] components) {
-        List<AbstractType<?>> types = baseComparator.types;
-        StringBuilder sb = new StringBuilder();
-        CompositeType.Builder builder = new CompositeType.Builder(baseComparator);
-        builder.add(rowKey);
-        sb.append(rowKeyComparator.getString(rowKey));
-        for (int i = 0; i < Math.min(prefixSize, components.length); i++) {
-            builder.add(components[i]);
-            AbstractType<?> componentType = types.get(i);
-            sb.append(':').append(componentType.compose(components[i]));
+    /**
+     * The column metadata of the table needed for every column written.
+     */
+    static class TableLayout {
+        final CompositeType comparator;
+        final List<AbstractType<?>> types;
+        final AbstractType<?> keyValidator;
+        final boolean hasCompositeKey;
+        //the number of clustering components in a column name
+        final int prefixSize;
+        //the position of the CQL column name in a column name
+        final int nameIdx;
+
+        TableLayout(ColumnFamilyStore table) {
+            comparator = (CompositeType) table.getComparator();
+            types = comparator.types;
+            keyValidator = table.metadata.getKeyValidator();
+            CFDefinition cfDef = table.metadata.getCfDef();
+            hasCompositeKey = cfDef.hasCompositeKey;
+            prefixSize = types.size() - (cfDef.hasCollections ? 2 : 1);
+            nameIdx = types.get(types.size() - 1) instanceof ColumnToCollectionType ? types.size() - 2 : types.size() - 1;
+        }
+    }
+
+    /**
+     * The fields of one CQL row.
+     */
+    static class RowDocument {
+        final ByteBuffer pk;
+        final String pkName;
+        //not reused, as the indexer may hold on to the documents till a batch is written
+        final List<Field> fields = new ArrayList<>();
+        //the column name components of the first column, of which the first prefix are the clustering key
+        final ByteBuffer[] components;
+        final int prefix;
+        long ts;
+
+        RowDocument(ByteBuffer pk, String pkName, ByteBuffer[] components, int prefix) {
+            this.pk = pk;
+            this.pkName = pkName;
+            this.components = components;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * The id and timestamp fields of a document, made once per thread and given the values of each document.
+     * Only for documents the indexer writes before the next one is made.
+     */
+    class ReusedFields {
+        private final BytesRef id = new BytesRef();
+        private final BytesRef pkNameBytes = new BytesRef();
+        private final BytesRef token = new BytesRef();
+        private Field idDocValues;
+        private Field pkNameDocValues;
+        private Field pkNameIndexed;
+        private Field rowKeyIndexed;
+        private Field tokenDocValues;
+        private Field tsDocValues;
+        private Field tsField;
+
+        void addTo(List<Field> fields, DecoratedKey rowKey, String rowKeyString, String pkName, ByteBuffer pk, long ts) {
+            if (idDocValues == null) {
+                idDocValues = new SortedDocValuesField(Constants.PK_NAME_DOC_VAL, id);
+                pkNameDocValues = new SortedDocValuesField(Constants.PK_NAME_STORED, pkNameBytes);
+                pkNameIndexed = Fields.pkNameIndexed(pkName);
+                rowKeyIndexed = Fields.rowKeyIndexed(rowKeyString);
+                tokenDocValues = new BinaryDocValuesField(Constants.TOKEN_DOC_VAL, token);
+                tsDocValues = Fields.tsDocValues(ts);
+                tsField = Fields.tsField(ts, tsFieldType);
+            }
+            id.bytes = pk.array();
+            id.offset = pk.arrayOffset() + pk.position();
+            id.length = pk.remaining();
+            pkNameBytes.copyChars(pkName);
+            pkNameIndexed.setStringValue(pkName);
+            rowKeyIndexed.setStringValue(rowKeyString);
+            tsDocValues.setLongValue(ts);
+            tsField.setLongValue(ts);
+            fields.add(idDocValues);
+            fields.add(pkNameDocValues);
+            fields.add(pkNameIndexed);
+            fields.add(rowKeyIndexed);
+            if (options.primary.getSharding().isSharded()) {
+                //a shard holds many ranges, so the token is kept to tell them apart
+                ByteBuffer tokenBytes = table.partitioner.getTokenFactory().toByteArray(rowKey.getToken());
+                token.bytes = ByteBufferUtil.getArray(tokenBytes);
+                token.offset = 0;
+                token.length = token.bytes.length;
+                fields.add(tokenDocValues);
+            }
+            fields.add(tsDocValues);
+            fields.add(tsField);
+        }
+    }
+
+    /**
+     * The documents of the partition being written. One is kept per thread and reused across partitions.
+     */
+    class RowDocuments {
+        final List<RowDocument> docs = new ArrayList<>();
+        final ReusedFields reused = new ReusedFields();
+        ByteBuffer rowKey;
+        DecoratedKey dk;
+        String rowKeyString;
+        private ByteBuffer[] keyComponents;
+        private ByteBuffer[] currentComponents;
+        private int currentPrefix;
+
+        void reset(TableLayout layout, DecoratedKey dk) {
+            this.dk = dk;
+            this.rowKey = dk.key;
+            this.rowKeyString = layout.keyValidator.getString(rowKey);
+        }
+
+        ByteBuffer[] keyComponents(TableLayout layout) {
+            if (keyComponents == null)
+                keyComponents = layout.hasCompositeKey ? ((CompositeType) layout.keyValidator).split(rowKey) : new ByteBuffer[]{rowKey};
+            return keyComponents;
+        }
+
+        /**
+         * @return the document of the last column if this column has the same clustering prefix, else null.
+         */
+        RowDocument current(ByteBuffer[] components, int prefixSize) {
+            if (docs.isEmpty()) return null;
+            int prefix = Math.min(prefixSize, components.length);
+            if (prefix != currentPrefix) return null;
+            for (int i = 0; i < prefix; i++) {
+                if (!components[i].equals(currentComponents[i])) return null;
+            }
+            return docs.get(docs.size() - 1);
+        }
+
+        void add(RowDocument doc, ByteBuffer[] components, int prefix) {
+            docs.add(doc);
+            currentComponents = components;
+            currentPrefix = prefix;
+        }
+
+        void clear() {
+            docs.clear();
+            rowKey = null;
+            dk = null;
+            rowKeyString = null;
+            keyComponents = null;
+            currentComponents = null;
         }
-        return Pair.create(builder, sb);
     }
 
     /**
@@ -206,11 +477,8 @@ public class RowIndexSupport {
     }
 
 
-    protected List<Field> collectionFields(CollectionType validator, String colName, Column column) {
-        CompositeType baseComparator = (CompositeType) table.getComparator();
-        ByteBuffer[] components = baseComparator.split(column.name());
+    protected List<Field> collectionFields(CollectionType validator, String colName, FieldType[] fieldTypesArr, Column column, ByteBuffer[] components) {
         List<Field> fields = new ArrayList<>();
-        FieldType[] fieldTypesArr = options.collectionFieldTypes.get(colName);
         AbstractType keyType = validator.nameComparator();
         AbstractType valueType = validator.valueComparator();
         if (validator instanceof MapType) {
@@ -227,8 +495,17 @@ public class RowIndexSupport {
         return fields;
     }
 
-    protected List<Field> idFields(DecoratedKey rowKey, String pkName, ByteBuffer pk, AbstractType rkValValidator) {
-        return Arrays.asList(Fields.idDocValues(rkValValidator, pk), Fields.pkNameDocValues(pkName), Fields.rowKeyIndexed(table.metadata.getKeyValidator().getString(rowKey.key)));
+    protected List<Field> idFields(DecoratedKey rowKey, String rowKeyString, String pkName, ByteBuffer pk, AbstractType rkValValidator) {
+        Field idDocValues = Fields.idDocValues(rkValValidator, pk);
+        Field pkNameDocValues = Fields.pkNameDocValues(pkName);
+        Field pkNameIndexed = Fields.pkNameIndexed(pkName);
+        Field rowKeyIndexed = Fields.rowKeyIndexed(rowKeyString);
+        if (options.primary.getSharding().isSharded()) {
+            //a shard holds many ranges, so the token is kept to tell them apart
+            Field tokenDocValues = Fields.tokenDocValues(table.partitioner.getTokenFactory().toByteArray(rowKey.getToken()));
+            return Arrays.asList(idDocValues, pkNameDocValues, pkNameIndexed, rowKeyIndexed, tokenDocValues);
+        }
+        return Arrays.asList(idDocValues, pkNameDocValues, pkNameIndexed, rowKeyIndexed);
     }
 
     protected List<Field> tsFields(long ts) {
@@ -244,18 +521,17 @@ public class RowIndexSupport {
         }
     }
 
-    protected void addFields(Column column, String name, List<Field> fields, ColumnDefinition columnDefinition) {
-        boolean isObject = options.isObject(name);
-        if (isObject) {
+    protected void addFields(Column column, IndexedColumns.IndexedColumn indexed, List<Field> fields, ByteBuffer[] components) {
+        ColumnDefinition columnDefinition = indexed.definition;
+        if (indexed.isObject) {
             String value = UTF8Type.instance.compose(column.value());
-            JsonDocument document = new StreamingJsonDocument(value, options.primary, name);
+            JsonDocument document = new StreamingJsonDocument(value, options.primary, indexed.name);
             fields.addAll(document.getFields());
         } else if (columnDefinition.getValidator().isCollection()) {
-            List<Field> fieldsForField = collectionFields((CollectionType) columnDefinition.getValidator(), name, column);
+            List<Field> fieldsForField = collectionFields((CollectionType) columnDefinition.getValidator(), indexed.name, indexed.collectionFieldTypes, column, components);
             fields.addAll(fieldsForField);
         } else {
-            FieldType fieldType = options.fieldTypes.get(name);
-            addField(fields, columnDefinition, name, fieldType, column.value());
+            addField(fields, columnDefinition, indexed.name, indexed.fieldType, column.value());
         }
     }
 
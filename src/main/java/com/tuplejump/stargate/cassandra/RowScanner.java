@@ -16,6 +16,7 @@
 
 package com.tuplejump.stargate.cassandra;
 
+import com.tuplejump.stargate.lucene.query.Cursor;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.filter.*;
 import org.apache.cassandra.db.marshal.CompositeType;
@@ -41,12 +42,19 @@ public class RowScanner extends ColumnFamilyStore.AbstractScanIterator {
     ExtendedFilter filter;
     Iterator<IndexEntryCollector.IndexEntry> indexIterator;
     SearchSupport searchSupport;
+    //whether to return the cursor of each row in the meta column
+    boolean cursors;
 
     public RowScanner(SearchSupport searchSupport, ColumnFamilyStore table, ExtendedFilter filter, Iterator<IndexEntryCollector.IndexEntry> indexIterator) throws Exception {
+        this(searchSupport, table, filter, indexIterator, false);
+    }
+
+    public RowScanner(SearchSupport searchSupport, ColumnFamilyStore table, ExtendedFilter filter, Iterator<IndexEntryCollector.IndexEntry> indexIterator, boolean cursors) throws Exception {
         this.searchSupport = searchSupport;
         this.table = table;
         this.filter = filter;
         this.indexIterator = indexIterator;
+        this.cursors = cursors;
     }
 
     @Override
@@ -65,6 +73,7 @@ public class RowScanner extends ColumnFamilyStore.AbstractScanIterator {
                 ByteBuffer rowKey = entry.rowKey;
                 long ts = entry.timestamp;
                 float score = entry.score;
+                String cursor = !cursors || entry.sortValues == null ? null : Cursor.encode(entry.sortValues);
 
                 Pair<DecoratedKey, IDiskAtomFilter> keyAndFilter = getFilterAndKey(rowKey, sliceQueryFilter);
                 if (keyAndFilter == null) {
@@ -84,7 +93,7 @@ public class RowScanner extends ColumnFamilyStore.AbstractScanIterator {
                 }
 
 
-                Row row = getRow(pkNameString, keyAndFilter.right, dk, ts, score);
+                Row row = getRow(pkNameString, keyAndFilter.right, dk, ts, score, cursor);
                 if (row == null) {
                     if (SearchSupport.logger.isTraceEnabled())
                         SearchSupport.logger.trace("Returned Row is null");
@@ -98,7 +107,7 @@ public class RowScanner extends ColumnFamilyStore.AbstractScanIterator {
         return endOfData();
     }
 
-    private Row getRow(String pkString, IDiskAtomFilter dataFilter, DecoratedKey dk, long ts, Float score) throws IOException {
+    private Row getRow(String pkString, IDiskAtomFilter dataFilter, DecoratedKey dk, long ts, Float score, String cursor) throws IOException {
 
         ColumnFamily data = table.getColumnFamily(new QueryFilter(dk, table.name, dataFilter, filter.timestamp));
         if (data == null || searchSupport.deleteIfNotLatest(dk, ts, pkString, data)) {
@@ -107,13 +116,14 @@ public class RowScanner extends ColumnFamilyStore.AbstractScanIterator {
         ColumnFamily cleanColumnFamily = data;
         if (searchSupport.currentIndex.isMetaColumn()) {
             String indexColumnName = searchSupport.currentIndex.getPrimaryColumnName();
+            ByteBuffer indexColumn = searchSupport.currentIndex.getColumnDefinition().name;
+            RowIndexSupport rowIndexSupport = searchSupport.currentIndex.getRowIndexSupport();
             cleanColumnFamily = TreeMapBackedSortedColumns.factory.create(table.metadata);
             boolean metaColReplaced = false;
             Column firstColumn = null;
             for (Column column : data) {
                 if (firstColumn == null) firstColumn = column;
-                String thisColName = searchSupport.currentIndex.getRowIndexSupport().getActualColumnName(column.name());
-                boolean isIndexColumn = indexColumnName.equals(thisColName);
+                boolean isIndexColumn = rowIndexSupport.isColumn(column.name(), indexColumn);
                 if (isIndexColumn) {
                 	try {
                 		if (logger.isDebugEnabled())
@@ -121,7 +131,7 @@ public class RowScanner extends ColumnFamilyStore.AbstractScanIterator {
                 	} catch( Exception ex ) {
                 		
                 	}
-                    Column scoreColumn = new Column(column.name(), UTF8Type.instance.decompose("{\"score\":" + score.toString() + "}"));
+                    Column scoreColumn = new Column(column.name(), UTF8Type.instance.decompose(metaValue(score, cursor)));
                     cleanColumnFamily.addColumn(scoreColumn);
                     metaColReplaced = true;
                 } else {
@@ -129,14 +139,19 @@ public class RowScanner extends ColumnFamilyStore.AbstractScanIterator {
                 }
             }
             if (!metaColReplaced && firstColumn != null) {
-                Column newColumn = getMetaColumn(firstColumn, indexColumnName, score);
+                Column newColumn = getMetaColumn(firstColumn, indexColumnName, score, cursor);
                 cleanColumnFamily.addColumn(newColumn);
             }
         }
         return new Row(dk, cleanColumnFamily);
     }
 
-    protected Column getMetaColumn(Column firstColumn, String colName, Float score) {
+    protected String metaValue(Float score, String cursor) {
+        if (cursor == null) return "{\"score\":" + score.toString() + "}";
+        return "{\"score\":" + score.toString() + ",\"cursor\":\"" + cursor + "\"}";
+    }
+
+    protected Column getMetaColumn(Column firstColumn, String colName, Float score, String cursor) {
         CompositeType baseComparator = (CompositeType) table.getComparator();
         ByteBuffer[] components = baseComparator.split(firstColumn.name());
         int prefixSize = baseComparator.types.size() - (table.metadata.getCfDef().hasCollections ? 2 : 1);
@@ -145,7 +160,7 @@ public class RowScanner extends ColumnFamilyStore.AbstractScanIterator {
             builder.add(components[i]);
         builder.add(UTF8Type.instance.decompose(colName));
         ByteBuffer finalColumnName = builder.build();
-        return new Column(finalColumnName, UTF8Type.instance.decompose("{\"score\":" + score.toString() + "}"));
+        return new Column(finalColumnName, UTF8Type.instance.decompose(metaValue(score, cursor)));
     }
 
 
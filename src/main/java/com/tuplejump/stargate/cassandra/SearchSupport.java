@@ -20,6 +20,7 @@ import com.tuplejump.stargate.RowIndex;
 import com.tuplejump.stargate.Utils;
 import com.tuplejump.stargate.lucene.Options;
 import com.tuplejump.stargate.lucene.SearcherCallback;
+import com.tuplejump.stargate.lucene.query.QueryPlanCache;
 import com.tuplejump.stargate.lucene.query.Search;
 import com.tuplejump.stargate.lucene.query.function.Function;
 import org.apache.cassandra.config.ColumnDefinition;
@@ -32,6 +33,8 @@ import org.apache.cassandra.db.marshal.UTF8Type;
 import org.apache.cassandra.thrift.IndexExpression;
 import org.apache.cassandra.thrift.IndexOperator;
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,24 +64,27 @@ public class SearchSupport extends SecondaryIndexSearcher {
 
     protected CustomColumnFactory customColumnFactory;
 
+    protected QueryPlanCache queryPlans;
+
     public SearchSupport(SecondaryIndexManager indexManager, RowIndex currentIndex, Set<ByteBuffer> columns, Options options) {
         super(indexManager, columns);
         this.options = options;
         this.currentIndex = currentIndex;
         this.fieldNames = options.fieldTypes.keySet();
         this.customColumnFactory = new CustomColumnFactory();
+        this.queryPlans = currentIndex.getQueryPlans();
 
     }
 
 
-    protected Search getQuery(IndexExpression predicate) throws Exception {
+    protected QueryPlanCache.Plan getQuery(IndexExpression predicate) throws Exception {
         ColumnDefinition cd = baseCfs.metadata.getColumnDefinition(predicate.column_name);
         String predicateValue = cd.getValidator().getString(predicate.bufferForValue());
         String columnName = Utils.getColumnName(cd);
         if (logger.isDebugEnabled())
             logger.debug("Index Searcher - query - predicate value [" + predicateValue + "] column name [" + columnName + "]");
         logger.debug("Column name is {}", columnName);
-        return Search.fromJson(predicateValue);
+        return queryPlans.get(predicateValue);
     }
 
 
@@ -89,8 +95,8 @@ public class SearchSupport extends SecondaryIndexSearcher {
         if (logger.isDebugEnabled())
             logger.debug("All IndexExprs {}", clause);
         try {
-            Search search = getQuery(matchThisIndex(clause));
-            return getRows(mainFilter, search);
+            QueryPlanCache.Plan plan = getQuery(matchThisIndex(clause));
+            return getRows(mainFilter, plan);
         } catch (Exception e) {
             if (currentIndex.isMetaColumn()) {
                 logger.error("Exception occurred while querying", e);
@@ -107,8 +113,10 @@ public class SearchSupport extends SecondaryIndexSearcher {
         }
     }
 
-    protected List<Row> getRows(final ExtendedFilter filter, final Search search) {
+    protected List<Row> getRows(final ExtendedFilter filter, final QueryPlanCache.Plan plan) throws Exception {
+        if (options.primary.getSearch().isParallel()) return getRowsPerVNode(filter, plan);
         final SearchSupport searchSupport = this;
+        final Search search = plan.search;
         SearcherCallback<List<Row>> sc = new SearcherCallback<List<Row>>() {
             @Override
             public List<Row> doWithSearcher(org.apache.lucene.search.IndexSearcher searcher) throws Exception {
@@ -124,15 +132,17 @@ public class SearchSupport extends SecondaryIndexSearcher {
                         limit = 1;
                     }
                     maxResults = Math.min(maxResults, limit);
-                    Query query = search.query(options);
-                    org.apache.lucene.search.SortField[] sort = search.usesSorting() ? search.sort(options) : null;
-                    IndexEntryCollector collector = new IndexEntryCollector(sort, maxResults);
+                    Query query = plan.query;
+                    Filter tokenFilter = currentIndex.tokenFilter(filter);
+                    if (tokenFilter != null) query = new FilteredQuery(query, tokenFilter);
+                    org.apache.lucene.search.SortField[] sort = plan.sort;
+                    IndexEntryCollector collector = new IndexEntryCollector(sort, maxResults, plan.after);
                     searcher.search(query, collector);
                     timer2.endLogTime("For TopDocs search for -" + collector.totalHits + " results");
                     if (SearchSupport.logger.isDebugEnabled()) {
                         SearchSupport.logger.debug(String.format("Search results [%s]", collector.totalHits));
                     }
-                    ColumnFamilyStore.AbstractScanIterator iter = new RowScanner(searchSupport, baseCfs, filter, collector.docs().iterator());
+                    ColumnFamilyStore.AbstractScanIterator iter = new RowScanner(searchSupport, baseCfs, filter, collector.docs().iterator(), search.isPaging());
                     List<Row> inputToFunction = baseCfs.filter(iter, filter);
                     Function function = search.function(options);
                     return function.process(inputToFunction, customColumnFactory, baseCfs, currentIndex);
@@ -142,7 +152,35 @@ public class SearchSupport extends SecondaryIndexSearcher {
 
             }
         };
-        return currentIndex.search(filter, sc);
+        return currentIndex.search(filter, search.maxStalenessMs(options), search.getPool(), sc);
+    }
+
+    /**
+     * Searches the index of each vnode for its own top results at the same time and merges them,
+     * instead of searching one reader over all of them.
+     */
+    protected List<Row> getRowsPerVNode(final ExtendedFilter filter, final QueryPlanCache.Plan plan) throws Exception {
+        Utils.SimpleTimer timer = Utils.getStartedTimer(logger);
+        Query planQuery = plan.query;
+        Filter tokenFilter = currentIndex.tokenFilter(filter);
+        if (tokenFilter != null) planQuery = new FilteredQuery(planQuery, tokenFilter);
+        final Query query = planQuery;
+        final int maxRows = filter.maxRows();
+        List<IndexEntryCollector> collectors = currentIndex.searchEach(filter, plan.search.maxStalenessMs(options), plan.search.getPool(), new SearcherCallback<IndexEntryCollector>() {
+            @Override
+            public IndexEntryCollector doWithSearcher(org.apache.lucene.search.IndexSearcher searcher) throws Exception {
+                int maxResults = Math.min(maxRows, Math.max(1, searcher.getIndexReader().maxDoc()));
+                IndexEntryCollector collector = new IndexEntryCollector(plan.sort, maxResults, plan.after);
+                searcher.search(query, collector);
+                return collector;
+            }
+        });
+        List<IndexEntryCollector.IndexEntry> entries = IndexEntryCollector.merge(plan.sort, Math.max(1, maxRows), collectors);
+        timer.endLogTime("For TopDocs search over " + collectors.size() + " vnodes for -" + entries.size() + " results");
+        ColumnFamilyStore.AbstractScanIterator iter = new RowScanner(this, baseCfs, filter, entries.iterator(), plan.search.isPaging());
+        List<Row> inputToFunction = baseCfs.filter(iter, filter);
+        Function function = plan.search.function(options);
+        return function.process(inputToFunction, customColumnFactory, baseCfs, currentIndex);
     }
 
     protected IndexExpression matchThisIndex(List<IndexExpression> clause) {
@@ -167,13 +205,16 @@ public class SearchSupport extends SecondaryIndexSearcher {
     }
 
     public boolean deleteIfNotLatest(DecoratedKey decoratedKey, long timestamp, String pkString, ColumnFamily cf) throws IOException {
+        com.tuplejump.stargate.lucene.Properties primary = options.primary;
+        if (!primary.getSearch().isStaleCheck(primary.getIndexing().isUpsert())) {
+            //skip rows which are gone, but leave their documents to the writes
+            return !cf.getColumnNames().iterator().hasNext();
+        }
         if (deleteRowIfNotLatest(decoratedKey, cf)) return true;
         Column lastColumn = null;
         for (ByteBuffer colKey : cf.getColumnNames()) {
-            String name = currentIndex.getRowIndexSupport().getActualColumnName(colKey);
-            com.tuplejump.stargate.lucene.Properties option = options.getFields().get(name);
-            //if fieldType was not found then the column is not indexed
-            if (option != null) {
+            //columns which are not indexed are not looked up
+            if (currentIndex.getRowIndexSupport().indexedColumn(colKey) != null) {
                 lastColumn = cf.getColumn(colKey);
             }
         }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.Fields;
+import org.apache.cassandra.dht.AbstractBounds;
+import org.apache.cassandra.dht.Token;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.FieldCacheDocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A filter which matches the documents whose row token falls in any of the given ranges.
+ * It reads the token stored as a doc value with every document of a sharded index, so documents
+ * written without a token never match.
+ */
+public class TokenRangeFilter extends Filter {
+
+    private final Token.TokenFactory tokenFactory;
+    private final Collection<? extends AbstractBounds<Token>> ranges;
+
+    public TokenRangeFilter(Token.TokenFactory tokenFactory, Collection<? extends AbstractBounds<Token>> ranges) {
+        this.tokenFactory = tokenFactory;
+        this.ranges = ranges;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+        AtomicReader reader = context.reader();
+        final BinaryDocValues tokens = Fields.getTokenDocValues(reader);
+        if (tokens == null) return null;
+        return new FieldCacheDocIdSet(reader.maxDoc(), acceptDocs) {
+            final BytesRef ref = new BytesRef();
+
+            @Override
+            protected boolean matchDoc(int doc) {
+                tokens.get(doc, ref);
+                if (ref.length == 0) return false;
+                Token token = tokenFactory.fromByteArray(ByteBuffer.wrap(ref.bytes, ref.offset, ref.length));
+                for (AbstractBounds<Token> range : ranges) {
+                    if (range.contains(token)) return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TokenRangeFilter)) return false;
+        return ranges.equals(((TokenRangeFilter) o).ranges);
+    }
+
+    @Override
+    public int hashCode() {
+        return ranges.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "TokenRangeFilter" + ranges;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An indexer which buffers inserts and hands them to the underlying indexer as one batch.
+ * Deletes and upserts flush the buffer first so that the order of operations is kept.
+ * This is not thread safe and is meant to be used by one indexing worker for one batch.
+ */
+public class BufferedIndexer implements Indexer {
+
+    protected final Indexer delegate;
+
+    protected List<Iterable<Field>> buffer = new ArrayList<>();
+
+    public BufferedIndexer(Indexer delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Writes the buffered documents to the underlying indexer.
+     */
+    public void flush() {
+        if (!buffer.isEmpty()) {
+            delegate.insertAll(buffer);
+            buffer = new ArrayList<>();
+        }
+    }
+
+    @Override
+    public void insert(Iterable<Field> doc) {
+        buffer.add(doc);
+    }
+
+    @Override
+    public void insertAll(Iterable<? extends Iterable<Field>> docs) {
+        for (Iterable<Field> doc : docs) {
+            buffer.add(doc);
+        }
+    }
+
+    @Override
+    public void delete(Term... idTerm) {
+        flush();
+        delegate.delete(idTerm);
+    }
+
+    @Override
+    public void delete(Query query) {
+        flush();
+        delegate.delete(query);
+    }
+
+    @Override
+    public void upsert(Iterable<Field> doc, Term idTerm) {
+        flush();
+        delegate.upsert(doc, idTerm);
+    }
+
+    @Override
+    public boolean removeIndex() {
+        buffer.clear();
+        return delegate.removeIndex();
+    }
+
+    @Override
+    public boolean truncate(long l) {
+        buffer.clear();
+        return delegate.truncate(l);
+    }
+
+    @Override
+    public long getLiveSize() {
+        return delegate.getLiveSize();
+    }
+
+    @Override
+    public void commit() {
+        flush();
+        delegate.commit();
+    }
+
+    @Override
+    public void close() {
+        flush();
+        delegate.close();
+    }
+
+    @Override
+    public Analyzer getAnalyzer() {
+        return delegate.getAnalyzer();
+    }
+
+    @Override
+    public void release(IndexSearcher searcher) {
+        delegate.release(searcher);
+    }
+
+    @Override
+    public IndexSearcher acquire() {
+        return delegate.acquire();
+    }
+
+    @Override
+    public IndexSearcher acquire(long maxStalenessMs) {
+        return delegate.acquire(maxStalenessMs);
+    }
+
+    @Override
+    public <T> T search(SearcherCallback<T> searcherCallback) {
+        return delegate.search(searcherCallback);
+    }
+
+    @Override
+    public void pauseRefreshes() {
+        delegate.pauseRefreshes();
+    }
+
+    @Override
+    public void resumeRefreshes() {
+        flush();
+        delegate.resumeRefreshes();
+    }
+
+    @Override
+    public boolean retainsDocuments() {
+        return true;
+    }
+}
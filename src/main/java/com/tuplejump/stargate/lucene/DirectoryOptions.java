@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * How the files of an index are read and written, set using the "directory" object at the root of the index options.
+ * The type is one of fs, mmap, nio or simple, where fs lets lucene pick the best one for the platform.
+ * New small segments are cached in memory by an NRT cache unless nrtCache is off, as is better for bulk loads.
+ * The cache sizes default to the lesser of 100 MB and the share of the index memory budget of the indexer.
+ */
+public class DirectoryOptions {
+
+    public static final double DEFAULT_NRT_CACHE_MB = 100;
+
+    @JsonProperty
+    String type;
+
+    @JsonProperty
+    Boolean nrtCache;
+
+    @JsonProperty
+    Double nrtCacheMaxMergeSizeMB;
+
+    @JsonProperty
+    Double nrtCacheMaxCachedMB;
+
+    @JsonProperty
+    Boolean compoundFile;
+
+    @JsonProperty
+    Integer mmapChunkSizeMB;
+
+    public FSDirectory open(File dir) throws IOException {
+        String name = type != null ? type.toLowerCase() : "fs";
+        switch (name) {
+            case "fs":
+                return FSDirectory.open(dir);
+            case "mmap":
+                if (mmapChunkSizeMB == null) return new MMapDirectory(dir);
+                //the chunk size can only be given when the directory is made
+                return new MMapDirectory(dir, null, mmapChunkSizeMB * 1024 * 1024);
+            case "nio":
+                return new NIOFSDirectory(dir);
+            case "simple":
+                return new SimpleFSDirectory(dir);
+            default:
+                throw new IllegalArgumentException("Unknown directory type " + type + ". Use one of fs, mmap, nio or simple");
+        }
+    }
+
+    public boolean isNrtCache() {
+        return nrtCache != null ? nrtCache : true;
+    }
+
+    public double getNrtCacheMaxMergeSizeMB(double share) {
+        return nrtCacheMaxMergeSizeMB != null ? nrtCacheMaxMergeSizeMB : Math.min(DEFAULT_NRT_CACHE_MB, share);
+    }
+
+    public double getNrtCacheMaxCachedMB(double share) {
+        return nrtCacheMaxCachedMB != null ? nrtCacheMaxCachedMB : Math.min(DEFAULT_NRT_CACHE_MB, share);
+    }
+
+    /**
+     * @return whether segments are written as compound files, null for the lucene default.
+     */
+    public Boolean getCompoundFile() {
+        return compoundFile;
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.bloom.BloomFilteringPostingsFormat;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The default codec with the postings format of some fields set by name.
+ * Formats are looked up by their SPI names, so segments written with them can be read by any codec.
+ */
+public class IndexCodec extends Lucene46Codec {
+
+    public static final String BLOOM_FILTER = "BloomFilter";
+
+    private static final String DEFAULT_POSTINGS = "Lucene41";
+
+    private final Map<String, PostingsFormat> postingsFormats = new HashMap<>();
+
+    /**
+     * @param postingsFormatNames the postings format names by field name.
+     */
+    public IndexCodec(Map<String, String> postingsFormatNames) {
+        for (Map.Entry<String, String> entry : postingsFormatNames.entrySet()) {
+            postingsFormats.put(entry.getKey(), postingsFormat(entry.getValue()));
+        }
+    }
+
+    @Override
+    public PostingsFormat getPostingsFormatForField(String field) {
+        PostingsFormat format = postingsFormats.get(field);
+        return format != null ? format : super.getPostingsFormatForField(field);
+    }
+
+    private static PostingsFormat postingsFormat(String name) {
+        //the SPI instance of the bloom filter is for reading only and has no format to delegate to
+        if (BLOOM_FILTER.equals(name)) return new BloomFilteringPostingsFormat(PostingsFormat.forName(DEFAULT_POSTINGS));
+        return PostingsFormat.forName(name);
+    }
+}
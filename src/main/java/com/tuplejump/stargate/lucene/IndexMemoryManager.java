@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.apache.cassandra.concurrent.DebuggableScheduledThreadPoolExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits one node wide memory budget across the IndexWriter RAM buffers and NRT caches of all the live indexers.
+ * Each indexer gets an equal share as its RAM buffer. When the memory used by all the indexers goes over the budget,
+ * the largest indexers are committed first, which flushes their buffers and moves their cached segments to disk,
+ * till the usage is back under the cleanup ratio of the budget.
+ * The buffers are resized on the cleaner thread, once for all the indexers opened or closed since they were last
+ * resized, so that opening many indexers at once does not resize all the others for each of them.
+ * The budget is set using the sg.index.memory.mb system property and defaults to a tenth of the heap.
+ */
+public class IndexMemoryManager {
+    private static final Logger logger = LoggerFactory.getLogger(IndexMemoryManager.class);
+
+    public static final long BUDGET_MB = Long.getLong("sg.index.memory.mb", Runtime.getRuntime().maxMemory() / (10 * 1024 * 1024));
+
+    public static final long CHECK_INTERVAL_MS = Long.getLong("sg.index.memory.check.ms", 250);
+
+    public static final double CLEANUP_RATIO = 0.75;
+
+    public static final double MIN_SHARE_MB = 4;
+
+    public static final double MAX_SHARE_MB = 256;
+
+    public static final IndexMemoryManager instance = new IndexMemoryManager();
+
+    private final Map<NearRealTimeIndexer, MetricName[]> indexers = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService cleaner = new DebuggableScheduledThreadPoolExecutor(1, "SGIndexMemoryCleaner", Thread.NORM_PRIORITY);
+
+    //set while a rebalance is queued, which then covers all the indexers registered or unregistered till it runs
+    private final AtomicBoolean rebalanceQueued = new AtomicBoolean();
+
+    private final Runnable rebalancer = new Runnable() {
+        @Override
+        public void run() {
+            rebalanceQueued.set(false);
+            rebalance();
+        }
+    };
+
+    private IndexMemoryManager() {
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maybeClean();
+            }
+        }, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Metrics.newGauge(IndexMemoryManager.class, "MemoryUsed", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return totalUsed();
+            }
+        });
+    }
+
+    /**
+     * @return the share of the budget each live indexer gets now, in MB.
+     */
+    public double share() {
+        return share(indexers.size());
+    }
+
+    /**
+     * @return the share of the budget each indexer gets once one more indexer is opened, in MB.
+     */
+    public double nextShare() {
+        return share(indexers.size() + 1);
+    }
+
+    private static double share(int live) {
+        double share = (double) BUDGET_MB / Math.max(1, live);
+        return Math.max(MIN_SHARE_MB, Math.min(MAX_SHARE_MB, share));
+    }
+
+    public void register(final NearRealTimeIndexer indexer) {
+        String scope = indexer.getMetricScope();
+        MetricName used = new MetricName(IndexMemoryManager.class, "IndexerMemoryUsed", scope);
+        MetricName share = new MetricName(IndexMemoryManager.class, "IndexerMemoryShare", scope);
+        Metrics.newGauge(used, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return indexer.ramBytesUsed();
+            }
+        });
+        Metrics.newGauge(share, new Gauge<Double>() {
+            @Override
+            public Double value() {
+                long total = totalUsed();
+                return total == 0 ? 0 : (double) indexer.ramBytesUsed() / total;
+            }
+        });
+        indexers.put(indexer, new MetricName[]{used, share});
+        queueRebalance();
+    }
+
+    public void unregister(NearRealTimeIndexer indexer) {
+        MetricName[] names = indexers.remove(indexer);
+        if (names != null) {
+            for (MetricName name : names) {
+                Metrics.defaultRegistry().removeMetric(name);
+            }
+            queueRebalance();
+        }
+    }
+
+    private void queueRebalance() {
+        if (rebalanceQueued.compareAndSet(false, true)) cleaner.execute(rebalancer);
+    }
+
+    void rebalance() {
+        double share = share();
+        for (NearRealTimeIndexer indexer : indexers.keySet()) {
+            indexer.setRAMBufferSizeMB(share);
+        }
+    }
+
+    private long totalUsed() {
+        long total = 0;
+        for (NearRealTimeIndexer indexer : indexers.keySet()) {
+            total += indexer.ramBytesUsed();
+        }
+        return total;
+    }
+
+    void maybeClean() {
+        long budget = BUDGET_MB * 1024 * 1024;
+        final Map<NearRealTimeIndexer, Long> used = new HashMap<>();
+        long total = 0;
+        for (NearRealTimeIndexer indexer : indexers.keySet()) {
+            long bytes = indexer.ramBytesUsed();
+            used.put(indexer, bytes);
+            total += bytes;
+        }
+        if (total <= budget) return;
+
+        List<NearRealTimeIndexer> largestFirst = new ArrayList<>(used.keySet());
+        Collections.sort(largestFirst, new Comparator<NearRealTimeIndexer>() {
+            @Override
+            public int compare(NearRealTimeIndexer o1, NearRealTimeIndexer o2) {
+                return Long.compare(used.get(o2), used.get(o1));
+            }
+        });
+        logger.warn("SG index memory used [{}] bytes is over the budget of [{}] bytes. Flushing largest indexers", total, budget);
+        long target = (long) (budget * CLEANUP_RATIO);
+        for (NearRealTimeIndexer indexer : largestFirst) {
+            if (total <= target) break;
+            try {
+                indexer.commit();
+                total -= used.get(indexer);
+            } catch (Exception e) {
+                //may have been closed after the usage was read
+                logger.error("Unable to flush indexer", e);
+            }
+        }
+    }
+}
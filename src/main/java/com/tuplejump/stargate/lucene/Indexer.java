@@ -20,6 +20,7 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
 
 /**
  * User: satya
@@ -39,15 +40,46 @@ public interface Indexer {
 
     void insert(Iterable<Field> doc);
 
+    void insertAll(Iterable<? extends Iterable<Field>> docs);
+
     public void delete(Term... idTerm);
 
+    /**
+     * Deletes all the documents matching the query, as when the ranges sharing a shard are cleaned up.
+     */
+    void delete(Query query);
+
     public Analyzer getAnalyzer();
 
     void release(IndexSearcher searcher);
 
     IndexSearcher acquire();
 
+    /**
+     * Acquires a searcher which may miss the writes of at most the last maxStalenessMs.
+     *
+     * @param maxStalenessMs 0 to see all the writes made so far, Long.MAX_VALUE for whatever searcher is open.
+     * @return the searcher, which must be released.
+     */
+    IndexSearcher acquire(long maxStalenessMs);
+
     public <T> T search(SearcherCallback<T> searcherCallback);
 
     void upsert(Iterable<Field> doc, Term idTerm);
+
+    /**
+     * Stops making writes searchable till refreshes are resumed, as when the index is rebuilt.
+     */
+    void pauseRefreshes();
+
+    /**
+     * Makes the writes so far searchable and refreshes for writes again.
+     */
+    void resumeRefreshes();
+
+    /**
+     * @return true if the documents given to this indexer are held after the call returns, as when they are written
+     * in batches, so they cannot be made of fields reused for the next document.
+     */
+    boolean retainsDocuments();
 }
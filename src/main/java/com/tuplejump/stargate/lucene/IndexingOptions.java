@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.Constants;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The write path properties of an index, set using the "indexing" object at the root of the index options.
+ * When async is on, mutations are queued per vnode and written in batches by the indexing workers
+ * instead of on the mutation thread.
+ * When upsert is on, a write reads the whole CQL row and replaces its document instead of adding one more.
+ * When lazyOpen is on, the index of a range is opened on its first write or search instead of when the node starts.
+ * The postings format of a field can be set by name in postingsFormats. The primary key and row key fields
+ * default to a bloom filtered format, as most lookups of them in a segment are for keys it does not have.
+ */
+public class IndexingOptions {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_LINGER_MS = 5;
+    public static final int DEFAULT_QUEUE_DEPTH = 8192;
+    public static final long DEFAULT_MAX_STALENESS_MS = 100;
+
+    @JsonProperty
+    Boolean async;
+
+    @JsonProperty
+    Integer batchSize;
+
+    @JsonProperty
+    Long lingerMs;
+
+    @JsonProperty
+    Integer queueDepth;
+
+    @JsonProperty
+    Long maxStalenessMs;
+
+    @JsonProperty
+    Boolean upsert;
+
+    @JsonProperty
+    Map<String, String> postingsFormats;
+
+    @JsonProperty
+    Boolean lazyOpen;
+
+    public boolean isAsync() {
+        return async != null ? async : false;
+    }
+
+    public int getBatchSize() {
+        return batchSize != null ? batchSize : DEFAULT_BATCH_SIZE;
+    }
+
+    public long getLingerMs() {
+        return lingerMs != null ? lingerMs : DEFAULT_LINGER_MS;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth != null ? queueDepth : DEFAULT_QUEUE_DEPTH;
+    }
+
+    public long getMaxStalenessMs() {
+        return maxStalenessMs != null ? maxStalenessMs : DEFAULT_MAX_STALENESS_MS;
+    }
+
+    public boolean isUpsert() {
+        return upsert != null ? upsert : false;
+    }
+
+    public boolean isLazyOpen() {
+        return lazyOpen != null ? lazyOpen : false;
+    }
+
+    /**
+     * @return the postings format names by field, with the defaults for the id fields.
+     */
+    public Map<String, String> getPostingsFormats() {
+        Map<String, String> formats = new HashMap<>();
+        formats.put(Constants.PK_NAME_STORED, IndexCodec.BLOOM_FILTER);
+        formats.put(Constants.RK_NAME_INDEXED, IndexCodec.BLOOM_FILTER);
+        if (postingsFormats != null) formats.putAll(postingsFormats);
+        return formats;
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.lucene.query.FilterCache;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An indexer which opens its NearRealTimeIndexer on the first write or search instead of when it is made,
+ * so that the indexes of ranges which are not used do not slow down the start of a node.
+ * Closing or committing an indexer which was never opened does nothing.
+ */
+public class LazyIndexer implements Indexer {
+    private static final Logger logger = LoggerFactory.getLogger(LazyIndexer.class);
+
+    private final Options options;
+    private final FilterCache filterCache;
+    private final String keyspaceName;
+    private final String cfName;
+    private final String indexName;
+    private final String vNodeName;
+    private volatile Indexer delegate;
+    //guarded by this
+    private boolean paused;
+
+    public LazyIndexer(Options options, String keyspaceName, String cfName, String indexName, String vNodeName) {
+        this(options, null, keyspaceName, cfName, indexName, vNodeName);
+    }
+
+    public LazyIndexer(Options options, FilterCache filterCache, String keyspaceName, String cfName, String indexName, String vNodeName) {
+        this.options = options;
+        this.filterCache = filterCache;
+        this.keyspaceName = keyspaceName;
+        this.cfName = cfName;
+        this.indexName = indexName;
+        this.vNodeName = vNodeName;
+    }
+
+    protected Indexer delegate() {
+        Indexer indexer = delegate;
+        if (indexer != null) return indexer;
+        synchronized (this) {
+            if (delegate == null) {
+                long started = System.currentTimeMillis();
+                Indexer opened = new NearRealTimeIndexer(options, filterCache, keyspaceName, cfName, indexName, vNodeName);
+                if (paused) opened.pauseRefreshes();
+                delegate = opened;
+                logger.warn("Opened indexer {} of {} on first use in {} ms", vNodeName, indexName, System.currentTimeMillis() - started);
+            }
+            return delegate;
+        }
+    }
+
+    public boolean isOpen() {
+        return delegate != null;
+    }
+
+    @Override
+    public boolean removeIndex() {
+        //the files of an unopened index are still on disk
+        return delegate().removeIndex();
+    }
+
+    @Override
+    public boolean truncate(long l) {
+        return delegate().truncate(l);
+    }
+
+    @Override
+    public long getLiveSize() {
+        Indexer indexer = delegate;
+        return indexer == null ? 0 : indexer.getLiveSize();
+    }
+
+    @Override
+    public void commit() {
+        Indexer indexer = delegate;
+        if (indexer != null) indexer.commit();
+    }
+
+    @Override
+    public void close() {
+        Indexer indexer = delegate;
+        if (indexer != null) indexer.close();
+    }
+
+    @Override
+    public void insert(Iterable<Field> doc) {
+        delegate().insert(doc);
+    }
+
+    @Override
+    public void insertAll(Iterable<? extends Iterable<Field>> docs) {
+        delegate().insertAll(docs);
+    }
+
+    @Override
+    public void delete(Term... idTerm) {
+        delegate().delete(idTerm);
+    }
+
+    @Override
+    public void delete(Query query) {
+        delegate().delete(query);
+    }
+
+    @Override
+    public Analyzer getAnalyzer() {
+        return options.analyzer;
+    }
+
+    @Override
+    public void release(IndexSearcher searcher) {
+        delegate().release(searcher);
+    }
+
+    @Override
+    public IndexSearcher acquire() {
+        return delegate().acquire();
+    }
+
+    @Override
+    public IndexSearcher acquire(long maxStalenessMs) {
+        return delegate().acquire(maxStalenessMs);
+    }
+
+    @Override
+    public <T> T search(SearcherCallback<T> searcherCallback) {
+        return delegate().search(searcherCallback);
+    }
+
+    @Override
+    public void upsert(Iterable<Field> doc, Term idTerm) {
+        delegate().upsert(doc, idTerm);
+    }
+
+    @Override
+    public synchronized void pauseRefreshes() {
+        paused = true;
+        if (delegate != null) delegate.pauseRefreshes();
+    }
+
+    @Override
+    public synchronized void resumeRefreshes() {
+        paused = false;
+        if (delegate != null) delegate.resumeRefreshes();
+    }
+
+    @Override
+    public boolean retainsDocuments() {
+        //the near real time indexer it opens writes each document when it is given
+        return false;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.apache.lucene.index.TieredMergePolicy;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * The tiered merge policy settings of an index, set using the "merge" object at the root of the index options.
+ * Settings left out keep the lucene defaults.
+ */
+public class MergeOptions {
+
+    @JsonProperty
+    Double maxMergedSegmentMB;
+
+    @JsonProperty
+    Double floorSegmentMB;
+
+    @JsonProperty
+    Double segmentsPerTier;
+
+    @JsonProperty
+    Integer maxMergeAtOnce;
+
+    @JsonProperty
+    Integer maxMergeAtOnceExplicit;
+
+    @JsonProperty
+    Double forceMergeDeletesPctAllowed;
+
+    @JsonProperty
+    Double reclaimDeletesWeight;
+
+    public TieredMergePolicy mergePolicy() {
+        TieredMergePolicy policy = new TieredMergePolicy();
+        if (maxMergedSegmentMB != null) policy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+        if (floorSegmentMB != null) policy.setFloorSegmentMB(floorSegmentMB);
+        if (segmentsPerTier != null) policy.setSegmentsPerTier(segmentsPerTier);
+        if (maxMergeAtOnce != null) policy.setMaxMergeAtOnce(maxMergeAtOnce);
+        if (maxMergeAtOnceExplicit != null) policy.setMaxMergeAtOnceExplicit(maxMergeAtOnceExplicit);
+        if (forceMergeDeletesPctAllowed != null) policy.setForceMergeDeletesPctAllowed(forceMergeDeletesPctAllowed);
+        if (reclaimDeletesWeight != null) policy.setReclaimDeletesWeight(reclaimDeletesWeight);
+        return policy;
+    }
+
+}
@@ -17,15 +17,21 @@
 package com.tuplejump.stargate.lucene;
 
 import com.tuplejump.stargate.Utils;
+import com.tuplejump.stargate.lucene.query.FilterCache;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
 import org.apache.cassandra.io.util.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.index.TrackingIndexWriter;
 import org.apache.lucene.search.*;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NRTCachingDirectory;
 import org.apache.lucene.util.Version;
 import org.slf4j.Logger;
@@ -33,21 +39,33 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * User: satya
- * An indexer which uses an underlying lucene ControlledRealTimeReopenThread Manager
+ * An indexer which uses an underlying lucene SearcherManager, reopened by the node wide RefreshScheduler
  */
 public class NearRealTimeIndexer implements Indexer {
     private static final Logger logger = LoggerFactory.getLogger(NearRealTimeIndexer.class);
 
     public static IndexWriterConfig.OpenMode OPEN_MODE = IndexWriterConfig.OpenMode.CREATE_OR_APPEND;
 
+    //the longest a search waits for the refresh which makes the latest writes searchable
+    public static final long REFRESH_WAIT_MS = Long.getLong("sg.refresh.wait.ms", 30000);
+
+    private static final Timer generationWaits = Metrics.newTimer(NearRealTimeIndexer.class, "GenerationWaits", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+
     protected TrackingIndexWriter indexWriter;
 
     protected ReferenceManager<IndexSearcher> indexSearcherReferenceManager;
 
-    protected NRTCachingDirectory directory;
+    protected Directory directory;
+
+    //null when the NRT cache is turned off
+    protected NRTCachingDirectory nrtCache;
 
     protected File file;
 
@@ -61,65 +79,83 @@ public class NearRealTimeIndexer implements Indexer {
 
     protected volatile long latest;
 
-    protected ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
-
     protected String vNodeName;
 
-    public NearRealTimeIndexer(Analyzer analyzer, String keyspaceName, String cfName, String indexName, String vNodeName) {
+    protected RefreshScheduler.Refresher refresher;
+
+    //id and timestamp deletes, written together as one query before the next refresh or commit
+    private final Queue<Query> pendingDeletes = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingDeleteCount = new AtomicInteger();
+
+    private final Runnable deleteFlusher = new Runnable() {
+        @Override
+        public void run() {
+            flushDeletes();
+        }
+    };
+
+    public NearRealTimeIndexer(Options options, String keyspaceName, String cfName, String indexName, String vNodeName) {
+        this(options, null, keyspaceName, cfName, indexName, vNodeName);
+    }
+
+    /**
+     * @param filterCache the cache of filter matches of the index, warmed along with new segments. Maybe null.
+     */
+    public NearRealTimeIndexer(Options options, FilterCache filterCache, String keyspaceName, String cfName, String indexName, String vNodeName) {
         try {
-            init(analyzer, keyspaceName, cfName, indexName, vNodeName);
+            init(options, filterCache, keyspaceName, cfName, indexName, vNodeName);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
     }
 
-    private void init(Analyzer analyzer, String keyspaceName, String cfName, String indexName, String vNodeName) throws IOException {
+    private void init(Options options, FilterCache filterCache, String keyspaceName, String cfName, String indexName, String vNodeName) throws IOException {
         this.indexName = indexName;
         this.keyspaceName = keyspaceName;
         this.cfName = cfName;
-        this.analyzer = analyzer;
+        this.analyzer = options.analyzer;
         this.vNodeName = vNodeName;
         logger.debug(indexName + " Lucene analyzer -" + analyzer);
         logger.debug(indexName + " Lucene version -" + Properties.luceneVersion);
-        IndexWriter delegate = getIndexWriter(Properties.luceneVersion);
+        SegmentWarmer warmer = new SegmentWarmer(options, filterCache, indexName);
+        IndexWriter delegate = getIndexWriter(options, warmer, Properties.luceneVersion);
         indexWriter = new TrackingIndexWriter(delegate);
-        indexSearcherReferenceManager = new SearcherManager(delegate, true, null);
-        reopenThread = new ControlledRealTimeReopenThread<>(indexWriter, indexSearcherReferenceManager, 1, 0.01);
-        startReopenThread();
+        IndexMemoryManager.instance.register(this);
+        StaleDocumentSweeper.instance.register(this);
+        indexSearcherReferenceManager = new SearcherManager(delegate, true, warmer.searcherFactory());
+        refresher = RefreshScheduler.instance.register(this, indexWriter, indexSearcherReferenceManager, options.primary.getIndexing().getMaxStalenessMs(), deleteFlusher);
         indexSearcherReferenceManager.maybeRefresh();
     }
 
 
-    private IndexWriter getIndexWriter(Version luceneV) throws IOException {
+    private IndexWriter getIndexWriter(Options options, SegmentWarmer warmer, Version luceneV) throws IOException {
         file = Utils.getDirectory(keyspaceName, cfName, indexName, vNodeName);
         IndexWriterConfig config = new IndexWriterConfig(luceneV, analyzer);
-        config.setRAMBufferSizeMB(256);
+        config.setCodec(new IndexCodec(options.primary.getIndexing().getPostingsFormats()));
+        double share = IndexMemoryManager.instance.nextShare();
+        config.setRAMBufferSizeMB(share);
         config.setOpenMode(OPEN_MODE);
-        directory = new NRTCachingDirectory(FSDirectory.open(file), 100, 100);
-        logger.warn(indexName + " SG Index - Opened dir[" + file.getAbsolutePath() + "] - Openmode[" + OPEN_MODE + "]");
+        DirectoryOptions directoryOptions = options.primary.getDirectory();
+        TieredMergePolicy mergePolicy = options.primary.getMerge().mergePolicy();
+        Boolean compoundFile = directoryOptions.getCompoundFile();
+        if (compoundFile != null) {
+            config.setUseCompoundFile(compoundFile);
+            mergePolicy.setNoCFSRatio(compoundFile ? 1.0 : 0.0);
+        }
+        config.setMergePolicy(mergePolicy);
+        config.setMergeScheduler(new SharedMergeScheduler());
+        config.setMergedSegmentWarmer(warmer);
+        directory = SharedMergeScheduler.throttled(directoryOptions.open(file));
+        if (directoryOptions.isNrtCache()) {
+            nrtCache = new NRTCachingDirectory(directory, directoryOptions.getNrtCacheMaxMergeSizeMB(share), directoryOptions.getNrtCacheMaxCachedMB(share));
+            directory = nrtCache;
+        }
+        logger.warn(indexName + " SG Index - Opened dir[" + file.getAbsolutePath() + "] - Openmode[" + OPEN_MODE + "] - Directory[" + directory + "]");
         return new IndexWriter(directory, config);
     }
 
-    private void startReopenThread() {
-        reopenThread.setName(String.format("SGIndex - %s - NRT Reopen Thread", indexName));
-        reopenThread.setPriority(Math.min(Thread.currentThread().getPriority() + 2, Thread.MAX_PRIORITY));
-        reopenThread.setDaemon(true);
-        reopenThread.start();
-        logger.warn(indexName + " NRT reopen thread  started - " + reopenThread.getName());
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                try {
-                    logger.warn(indexName + " NRT Shutdown hook called- Commiting and closing index");
-                    close();
-                } catch (Exception e) {
-                    //do nothing
-                }
-            }
-        });
-    }
-
     @Override
     public void upsert(Iterable<Field> doc, Term idTerm) {
         if (logger.isDebugEnabled()) {
@@ -131,8 +167,9 @@ public class NearRealTimeIndexer implements Indexer {
         }
 
         try {
+            drainDeletes();
             latest = indexWriter.updateDocument(idTerm, doc);
-            indexSearcherReferenceManager.maybeRefresh();
+            refresher.request();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -149,24 +186,108 @@ public class NearRealTimeIndexer implements Indexer {
          }
 
         try {
+            drainDeletes();
             latest = indexWriter.addDocument(doc);
-            indexSearcherReferenceManager.maybeRefresh();
+            refresher.request();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void insertAll(Iterable<? extends Iterable<Field>> docs) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(indexName + " Indexing batch of documents");
+        }
+
+        int failed = 0;
+        try {
+            drainDeletes();
+            //one document at a time, so that a bad row does not drop the rest of the batch
+            for (Iterable<Field> doc : docs) {
+                try {
+                    latest = indexWriter.addDocument(doc);
+                } catch (AlreadyClosedException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    failed++;
+                    logger.error(indexName + " Could not index document", e);
+                }
+            }
+            refresher.request();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (failed > 0)
+            logger.warn(indexName + " Skipped " + failed + " documents of batch");
     }
 
     @Override
     public void delete(Term... terms) {
         try {
+            if (terms.length == 1) {
+                if (logger.isDebugEnabled())
+                    logger.debug(indexName + " Delete term - " + terms[0]);
+                latest = indexWriter.deleteDocuments(terms[0]);
+                refresher.request();
+                return;
+            }
             BooleanQuery q = new BooleanQuery();
             for (Term t : terms) {
                 if (logger.isDebugEnabled())
                     logger.debug(indexName + " Delete term - " + t);
                 q.add(new TermQuery(t), BooleanClause.Occur.MUST);
             }
-            latest = indexWriter.deleteDocuments(q);
-            indexSearcherReferenceManager.maybeRefresh();
+            pendingDeletes.add(q);
+            //read after queueing, the refresh which makes this generation searchable writes the delete first
+            latest = indexWriter.getGeneration();
+            if (pendingDeleteCount.incrementAndGet() >= BooleanQuery.getMaxClauseCount()) flushDeletes();
+            refresher.request();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the deletes queued so far before a document is added, so that a delete made before the add cannot
+     * remove the document when the deletes are written at the next refresh.
+     */
+    private void drainDeletes() {
+        if (pendingDeleteCount.get() > 0) flushDeletes();
+    }
+
+    /**
+     * Writes the batched deletes as queries of up to the max clause count of a BooleanQuery.
+     * The count of pending deletes drops only once they are written, so a drain which finds deletes being written by
+     * another thread waits for them.
+     */
+    protected synchronized void flushDeletes() {
+        while (!pendingDeletes.isEmpty()) {
+            BooleanQuery batch = new BooleanQuery();
+            Query q;
+            int count = 0;
+            while (count < BooleanQuery.getMaxClauseCount() && (q = pendingDeletes.poll()) != null) {
+                batch.add(q, BooleanClause.Occur.SHOULD);
+                count++;
+            }
+            if (count == 0) return;
+            try {
+                indexWriter.deleteDocuments(batch);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                pendingDeleteCount.addAndGet(-count);
+            }
+        }
+    }
+
+    @Override
+    public void delete(Query query) {
+        try {
+            if (logger.isDebugEnabled())
+                logger.debug(indexName + " Delete query - " + query);
+            latest = indexWriter.deleteDocuments(query);
+            refresher.request();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -191,19 +312,33 @@ public class NearRealTimeIndexer implements Indexer {
 
     @Override
     public IndexSearcher acquire() {
+        return acquire(0);
+    }
+
+    @Override
+    public IndexSearcher acquire(long maxStalenessMs) {
         try {
-            reopenThread.waitForGeneration(latest);
+            waitForLatest(maxStalenessMs);
             return indexSearcherReferenceManager.acquire();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void waitForLatest(long maxStalenessMs) throws Exception {
+        TimerContext waiting = generationWaits.time();
+        try {
+            refresher.waitForGeneration(latest, maxStalenessMs).get(REFRESH_WAIT_MS, TimeUnit.MILLISECONDS);
+        } finally {
+            waiting.stop();
+        }
+    }
+
     @Override
     public <T> T search(SearcherCallback<T> searcherCallback) {
         IndexSearcher searcher = null;
         try {
-            reopenThread.waitForGeneration(latest);
+            waitForLatest(0);
             searcher = indexSearcherReferenceManager.acquire();
             return searcherCallback.doWithSearcher(searcher);
         } catch (Exception e) {
@@ -236,6 +371,8 @@ public class NearRealTimeIndexer implements Indexer {
     public boolean truncate(long l) {
         try {
             logger.warn("SG NearRealTimeIndexer - Truncating index -" + indexName);
+            pendingDeletes.clear();
+            pendingDeleteCount.set(0);
             indexWriter.deleteAll();
             return true;
         } catch (IOException e) {
@@ -258,6 +395,41 @@ public class NearRealTimeIndexer implements Indexer {
         }
     }
 
+    /**
+     * @return the memory held by the IndexWriter buffers and the NRT cache of this indexer.
+     */
+    public long ramBytesUsed() {
+        try {
+            return indexWriter.getIndexWriter().ramSizeInBytes() + (nrtCache != null ? nrtCache.sizeInBytes() : 0);
+        } catch (Exception e) {
+            //closed
+            return 0;
+        }
+    }
+
+    @Override
+    public void pauseRefreshes() {
+        refresher.pause();
+    }
+
+    @Override
+    public void resumeRefreshes() {
+        refresher.resume();
+    }
+
+    @Override
+    public boolean retainsDocuments() {
+        return false;
+    }
+
+    public void setRAMBufferSizeMB(double ramBufferSizeMB) {
+        indexWriter.getIndexWriter().getConfig().setRAMBufferSizeMB(ramBufferSizeMB);
+    }
+
+    public String getMetricScope() {
+        return keyspaceName + "." + cfName + "." + indexName + "." + vNodeName;
+    }
+
     @Override
     public void close() {
         try {
@@ -271,8 +443,10 @@ public class NearRealTimeIndexer implements Indexer {
 
     private void closeIndex() throws IOException {
         logger.warn("SG NearRealTimeIndexer - Closing index -" + indexName);
-        reopenThread.interrupt();
-        reopenThread.close();
+        IndexMemoryManager.instance.unregister(this);
+        StaleDocumentSweeper.instance.unregister(this);
+        refresher.close();
+        flushDeletes();
         indexSearcherReferenceManager.close();
         indexWriter.getIndexWriter().close();
         analyzer.close();
@@ -282,6 +456,7 @@ public class NearRealTimeIndexer implements Indexer {
     public void commit() {
         try {
             logger.warn("SG NearRealTimeIndexer - Committing index -" + indexName);
+            flushDeletes();
             indexWriter.getIndexWriter().commit();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -121,6 +121,24 @@ public class Properties {
     @JsonProperty
     Map<String, Properties> fields = new HashMap<>();
 
+    @JsonProperty
+    IndexingOptions indexing;
+
+    @JsonProperty
+    SearchOptions search;
+
+    @JsonProperty
+    ShardingOptions sharding;
+
+    @JsonProperty
+    MergeOptions merge;
+
+    @JsonProperty
+    DirectoryOptions directory;
+
+    @JsonProperty
+    WarmingOptions warming;
+
     boolean lowerCased;
 
     public Type getType() {
@@ -210,6 +228,36 @@ public class Properties {
         return metaColumn;
     }
 
+    public IndexingOptions getIndexing() {
+        if (indexing == null) indexing = new IndexingOptions();
+        return indexing;
+    }
+
+    public SearchOptions getSearch() {
+        if (search == null) search = new SearchOptions();
+        return search;
+    }
+
+    public ShardingOptions getSharding() {
+        if (sharding == null) sharding = new ShardingOptions();
+        return sharding;
+    }
+
+    public MergeOptions getMerge() {
+        if (merge == null) merge = new MergeOptions();
+        return merge;
+    }
+
+    public DirectoryOptions getDirectory() {
+        if (directory == null) directory = new DirectoryOptions();
+        return directory;
+    }
+
+    public WarmingOptions getWarming() {
+        if (warming == null) warming = new WarmingOptions();
+        return warming;
+    }
+
     public int getMaxFieldLength() {
         return maxFieldLength;
     }
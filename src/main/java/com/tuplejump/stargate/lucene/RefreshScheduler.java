@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.apache.cassandra.concurrent.DebuggableScheduledThreadPoolExecutor;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A node wide scheduler which reopens the searchers of all the NRT indexers on a fixed pool of threads.
+ * Writes request a refresh instead of refreshing right away. Requests which come in while a refresh is pending
+ * are coalesced into it, so an indexer is refreshed at most once per its max staleness however many documents
+ * are written in between. Searches which need a generation to be visible get a future which completes once
+ * a refresh has made it searchable.
+ * It also closes all the registered indexers in one shutdown hook.
+ * The number of refresh threads is set using the sg.refresh.threads system property.
+ */
+public class RefreshScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(RefreshScheduler.class);
+
+    public static final int THREADS = Integer.getInteger("sg.refresh.threads", 2);
+
+    public static final RefreshScheduler instance = new RefreshScheduler();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("SGIndex - Shutdown") {
+            @Override
+            public void run() {
+                instance.shutdown();
+            }
+        });
+    }
+
+    private static final long NONE = Long.MAX_VALUE;
+
+    private final ScheduledThreadPoolExecutor executor = new DebuggableScheduledThreadPoolExecutor(THREADS, "SGRefresh", Thread.NORM_PRIORITY);
+
+    private final Set<Refresher> refreshers = new LinkedHashSet<>();
+
+    private final Counter performed = Metrics.newCounter(RefreshScheduler.class, "RefreshesPerformed");
+
+    private final Counter skipped = Metrics.newCounter(RefreshScheduler.class, "RefreshesSkipped");
+
+    private RefreshScheduler() {
+    }
+
+    /**
+     * Registers an indexer with this scheduler.
+     *
+     * @param owner          the indexer, which is closed on shutdown.
+     * @param writer         the writer which hands out the generations of the writes.
+     * @param manager        the searcher manager to refresh.
+     * @param maxStalenessMs the longest a write may wait before it is made searchable.
+     * @return the refresher to request refreshes with.
+     */
+    public Refresher register(Indexer owner, TrackingIndexWriter writer, ReferenceManager<?> manager, long maxStalenessMs) {
+        return register(owner, writer, manager, maxStalenessMs, null);
+    }
+
+    /**
+     * Registers an indexer with this scheduler.
+     *
+     * @param beforeRefresh run before every reopen, as to write the deletes batched by the indexer.
+     * @return the refresher to request refreshes with.
+     */
+    public Refresher register(Indexer owner, TrackingIndexWriter writer, ReferenceManager<?> manager, long maxStalenessMs, Runnable beforeRefresh) {
+        Refresher refresher = new Refresher(owner, writer, manager, maxStalenessMs, beforeRefresh);
+        synchronized (refreshers) {
+            refreshers.add(refresher);
+        }
+        return refresher;
+    }
+
+    public long getRefreshesPerformed() {
+        return performed.count();
+    }
+
+    public long getRefreshesSkipped() {
+        return skipped.count();
+    }
+
+    /**
+     * Stops refreshing and then commits and closes the registered indexers in the order they were opened.
+     */
+    void shutdown() {
+        logger.warn("SGIndex shutdown - Stopping refreshes");
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            //go ahead and close
+        }
+        List<Refresher> toClose;
+        synchronized (refreshers) {
+            toClose = new ArrayList<>(refreshers);
+        }
+        logger.warn("SGIndex shutdown - Commiting and closing {} indexes", toClose.size());
+        for (Refresher refresher : toClose) {
+            try {
+                refresher.owner.close();
+            } catch (Exception e) {
+                logger.error("Unable to close index on shutdown", e);
+            }
+        }
+    }
+
+    public class Refresher {
+        private final Indexer owner;
+        private final TrackingIndexWriter writer;
+        private final ReferenceManager<?> manager;
+        private final long maxStalenessMs;
+        private final Runnable beforeRefresh;
+        //nano time by which the pending refresh runs
+        private final AtomicLong deadline = new AtomicLong(NONE);
+        private final ConcurrentSkipListMap<Long, SettableFuture<Long>> waiters = new ConcurrentSkipListMap<>();
+        private volatile long searchingGen;
+        //nano time at which the searcher being used was opened
+        private volatile long searchingSince = System.nanoTime();
+        private volatile boolean closed;
+        private volatile boolean paused;
+
+        Refresher(Indexer owner, TrackingIndexWriter writer, ReferenceManager<?> manager, long maxStalenessMs, Runnable beforeRefresh) {
+            this.owner = owner;
+            this.writer = writer;
+            this.manager = manager;
+            this.maxStalenessMs = maxStalenessMs;
+            this.beforeRefresh = beforeRefresh;
+        }
+
+        /**
+         * Asks for a refresh within the max staleness of this indexer.
+         */
+        public void request() {
+            if (paused) return;
+            request(maxStalenessMs);
+        }
+
+        /**
+         * Stops refreshing for writes till resumed. Searches which wait for a generation still refresh.
+         */
+        public void pause() {
+            paused = true;
+        }
+
+        /**
+         * Refreshes for writes again, starting with one refresh right away.
+         */
+        public void resume() {
+            paused = false;
+            request(0);
+        }
+
+        private void request(long delayMs) {
+            final long at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+            while (true) {
+                long current = deadline.get();
+                if (current <= at) {
+                    skipped.inc();
+                    return;
+                }
+                if (deadline.compareAndSet(current, at)) {
+                    executor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            //an earlier request may have already taken over
+                            if (deadline.compareAndSet(at, NONE)) refresh();
+                        }
+                    }, delayMs, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+        }
+
+        private void refresh() {
+            if (closed) return;
+            try {
+                long started = System.nanoTime();
+                long gen = writer.getAndIncrementGeneration();
+                //run after taking the generation, so all that was queued up to it is written before the reopen
+                if (beforeRefresh != null) beforeRefresh.run();
+                manager.maybeRefreshBlocking();
+                searchingGen = gen;
+                searchingSince = started;
+                performed.inc();
+                releaseWaiters(gen);
+            } catch (AlreadyClosedException e) {
+                //closed while the refresh was pending
+                failWaiters(e);
+            } catch (Throwable t) {
+                logger.error("Unable to refresh searcher", t);
+                //searches waiting on this refresh fail rather than wait for one which may never come
+                failWaiters(t);
+            }
+        }
+
+        /**
+         * Returns a future which completes once the given generation is searchable. A refresh is done right away
+         * if it is not yet searchable.
+         *
+         * @param gen the generation returned for a write by the TrackingIndexWriter.
+         * @return a future of the generation being searched.
+         */
+        public Future<Long> waitForGeneration(long gen) {
+            return waitForGeneration(gen, 0);
+        }
+
+        /**
+         * Returns a future which completes right away if the open searcher is at most maxStalenessMs old,
+         * else once the given generation is searchable.
+         *
+         * @param gen            the generation returned for a write by the TrackingIndexWriter.
+         * @param maxStalenessMs the oldest the open searcher may be.
+         * @return a future of the generation being searched.
+         */
+        public Future<Long> waitForGeneration(long gen, long maxStalenessMs) {
+            if (gen <= searchingGen || closed) return Futures.immediateFuture(searchingGen);
+            if (System.nanoTime() - searchingSince <= TimeUnit.MILLISECONDS.toNanos(maxStalenessMs))
+                return Futures.immediateFuture(searchingGen);
+            SettableFuture<Long> future = SettableFuture.create();
+            SettableFuture<Long> existing = waiters.putIfAbsent(gen, future);
+            if (existing != null) future = existing;
+            //the refresh may have finished, or the index closed, while this was being added
+            if (gen <= searchingGen) releaseWaiters(searchingGen);
+            if (closed) failWaiters(new AlreadyClosedException("Index closed"));
+            else request(0);
+            return future;
+        }
+
+        private void releaseWaiters(long gen) {
+            Map.Entry<Long, SettableFuture<Long>> entry;
+            while ((entry = waiters.firstEntry()) != null && entry.getKey() <= gen) {
+                if (waiters.remove(entry.getKey(), entry.getValue())) entry.getValue().set(gen);
+            }
+        }
+
+        private void failWaiters(Throwable t) {
+            Map.Entry<Long, SettableFuture<Long>> entry;
+            while ((entry = waiters.firstEntry()) != null) {
+                if (waiters.remove(entry.getKey(), entry.getValue())) entry.getValue().setException(t);
+            }
+        }
+
+        public void close() {
+            closed = true;
+            failWaiters(new AlreadyClosedException("Index closed"));
+            synchronized (refreshers) {
+                refreshers.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * The read path properties of an index, set using the "search" object at the root of the index options.
+ * These are the defaults for searches which do not set them.
+ * When parallel is on, the index of each vnode is searched at the same time for its own top results, which are then merged.
+ * Searches run on the node wide default search pool, unless pool names a pool or threads sizes one for this index.
+ */
+public class SearchOptions {
+
+    public static final long DEFAULT_STALENESS_MS = 1000;
+
+    public static final long DEFAULT_FILTER_CACHE_MB = 32;
+
+    /**
+     * How fresh the searcher used by a search needs to be.
+     */
+    public enum Consistency {
+        /**
+         * Wait till all the writes made so far are searchable.
+         */
+        strict,
+        /**
+         * Use the open searcher if it is at most stalenessMs old, else wait as in strict.
+         */
+        bounded,
+        /**
+         * Use whatever searcher is open now.
+         */
+        open
+    }
+
+    @JsonProperty
+    Consistency consistency;
+
+    @JsonProperty
+    Long stalenessMs;
+
+    @JsonProperty
+    Boolean staleCheck;
+
+    @JsonProperty
+    Long filterCacheMB;
+
+    @JsonProperty
+    String pool;
+
+    @JsonProperty
+    Boolean parallel;
+
+    @JsonProperty
+    Integer threads;
+
+    @JsonProperty
+    Integer queueDepth;
+
+    public Consistency getConsistency() {
+        return consistency != null ? consistency : Consistency.strict;
+    }
+
+    public long getStalenessMs() {
+        return stalenessMs != null ? stalenessMs : DEFAULT_STALENESS_MS;
+    }
+
+    /**
+     * @return the name of the search pool of the index, null if not set.
+     */
+    public String getPool() {
+        return pool;
+    }
+
+    public boolean isParallel() {
+        return parallel != null ? parallel : false;
+    }
+
+    /**
+     * @return the threads of the search pool of the index, null if not set.
+     */
+    public Integer getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the queue depth of the search pool of the index, null if not set.
+     */
+    public Integer getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the memory the filter matches of an index may be cached in, 0 to not cache them.
+     */
+    public long getFilterCacheMB() {
+        return filterCacheMB != null ? filterCacheMB : DEFAULT_FILTER_CACHE_MB;
+    }
+
+    /**
+     * Whether the rows read for a search are checked for being newer than their documents, deleting the stale documents.
+     * This is on by default, unless the index is written with upserts which do not leave stale documents behind.
+     */
+    public boolean isStaleCheck(boolean upsert) {
+        return staleCheck != null ? staleCheck : !upsert;
+    }
+
+    /**
+     * @return the oldest a searcher may be for searches made with these options.
+     */
+    public long maxStalenessMs() {
+        return maxStalenessMs(getConsistency(), getStalenessMs());
+    }
+
+    public static long maxStalenessMs(Consistency consistency, long stalenessMs) {
+        switch (consistency) {
+            case open:
+                return Long.MAX_VALUE;
+            case bounded:
+                return stalenessMs;
+            default:
+                return 0;
+        }
+    }
+
+}
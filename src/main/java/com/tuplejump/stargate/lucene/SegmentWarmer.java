@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.lucene.query.FilterCache;
+import com.tuplejump.stargate.lucene.query.Search;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.Sort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Warms new segments before they are searched, as set by the WarmingOptions of an index.
+ * Merged segments are warmed by the IndexWriter before the merge is committed, and flushed segments are warmed
+ * by the SearcherFactory before the reopened searcher is published. Each segment is warmed once, keyed by its core,
+ * so a reopen only pays for the segments that are new. The warming queries cache the matches of their filters
+ * for the segment, so searches with the same filters find them cached.
+ */
+public class SegmentWarmer extends IndexWriter.IndexReaderWarmer {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentWarmer.class);
+
+    private final String indexName;
+    private final boolean docValues;
+    private final Sort sort;
+    private final List<Query> queries = new ArrayList<>();
+    private final Set<Object> warmed = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Object, Boolean>()));
+
+    public SegmentWarmer(Options options, String indexName) {
+        this(options, null, indexName);
+    }
+
+    /**
+     * @param filterCache the cache of filter matches of the index, filled in by the warming queries. Maybe null.
+     */
+    public SegmentWarmer(Options options, FilterCache filterCache, String indexName) {
+        this.indexName = indexName;
+        WarmingOptions warming = options.primary.getWarming();
+        this.docValues = warming.isDocValues();
+        this.sort = warming.getSort() == null ? null : new Sort(warming.getSort().sort(options));
+        for (Search search : warming.getQueries()) {
+            try {
+                queries.add(search.query(options, filterCache));
+            } catch (Exception e) {
+                logger.error(indexName + " Unable to make warming query " + search, e);
+            }
+        }
+    }
+
+    @Override
+    public void warm(AtomicReader reader) throws IOException {
+        if (!warmed.add(reader.getCoreCacheKey())) return;
+        long started = System.nanoTime();
+        if (docValues) {
+            for (FieldInfo fieldInfo : reader.getFieldInfos()) {
+                if (fieldInfo.hasDocValues()) {
+                    switch (fieldInfo.getDocValuesType()) {
+                        case NUMERIC:
+                            reader.getNumericDocValues(fieldInfo.name);
+                            break;
+                        case BINARY:
+                            reader.getBinaryDocValues(fieldInfo.name);
+                            break;
+                        case SORTED:
+                            reader.getSortedDocValues(fieldInfo.name);
+                            break;
+                        case SORTED_SET:
+                            reader.getSortedSetDocValues(fieldInfo.name);
+                            break;
+                    }
+                }
+                if (fieldInfo.hasNorms()) reader.getNormValues(fieldInfo.name);
+            }
+        }
+        IndexSearcher searcher = new IndexSearcher(reader);
+        if (sort != null) searcher.search(new MatchAllDocsQuery(), 1, sort);
+        for (Query query : queries) {
+            searcher.search(query, 1);
+        }
+        if (logger.isDebugEnabled())
+            logger.debug(indexName + " Warmed segment with " + reader.maxDoc() + " docs in " + (System.nanoTime() - started) / 1000000 + " ms");
+    }
+
+    /**
+     * @return a factory which warms the segments new to a reopened reader before it is searched.
+     */
+    public SearcherFactory searcherFactory() {
+        return new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+                for (AtomicReaderContext leaf : reader.leaves()) {
+                    try {
+                        warm(leaf.reader());
+                    } catch (IOException e) {
+                        logger.error(indexName + " Unable to warm segment", e);
+                    }
+                }
+                return new IndexSearcher(reader);
+            }
+        };
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * How the local token ranges of a node are laid out on lucene indexes, set using the "sharding" object
+ * at the root of the index options.
+ * By default every vnode range gets its own index. When shards or shardsPerCore is set, the ranges are
+ * hashed onto that many indexes instead and the token of each row is stored with its documents
+ * so that searches and range cleanups can still be restricted to some ranges.
+ * Changing the number of shards of an existing index needs the index to be rebuilt.
+ */
+public class ShardingOptions {
+
+    @JsonProperty
+    Integer shards;
+
+    @JsonProperty
+    Integer shardsPerCore;
+
+    /**
+     * @return the number of lucene indexes to spread the local ranges over, 0 for an index per vnode range.
+     */
+    public int getShards() {
+        if (shards != null) return shards;
+        if (shardsPerCore != null) return shardsPerCore * Runtime.getRuntime().availableProcessors();
+        return 0;
+    }
+
+    public boolean isSharded() {
+        return getShards() > 0;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import org.apache.cassandra.concurrent.DebuggableThreadPoolExecutor;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+import org.apache.lucene.store.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs the merges of all the indexers on one node wide pool of threads instead of a ConcurrentMergeScheduler
+ * with threads of its own per indexer, and throttles the bytes written by them with one node wide rate,
+ * as Cassandra does for compactions. This keeps hundreds of vnode indexes from merging at once and competing
+ * with compactions for the disk.
+ * The threads and the rate are set using the sg.merge.threads and sg.merge.mb.per.sec system properties.
+ * A rate of 0 leaves merges unthrottled.
+ */
+public class SharedMergeScheduler extends MergeScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(SharedMergeScheduler.class);
+
+    public static final int THREADS = Integer.getInteger("sg.merge.threads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+    public static final double MB_PER_SEC = Double.parseDouble(System.getProperty("sg.merge.mb.per.sec", "0"));
+
+    private static final ExecutorService mergers = DebuggableThreadPoolExecutor.createWithFixedPoolSize("SGMerge", THREADS);
+
+    private static final Throttle throttle = new Throttle(MB_PER_SEC);
+
+    /**
+     * Wraps a directory so the merges written to it count against the node wide merge rate.
+     */
+    public static Directory throttled(Directory directory) {
+        RateLimitedDirectoryWrapper wrapper = new RateLimitedDirectoryWrapper(directory);
+        wrapper.setRateLimiter(throttle, IOContext.Context.MERGE);
+        return wrapper;
+    }
+
+    /**
+     * Changes the node wide merge rate, 0 to stop throttling.
+     */
+    public static void setMbPerSec(double mbPerSec) {
+        throttle.setMbPerSec(mbPerSec);
+    }
+
+    @Override
+    public void merge(final IndexWriter writer, MergeTrigger trigger, boolean newMergesFound) throws IOException {
+        MergePolicy.OneMerge merge;
+        while ((merge = writer.getNextMerge()) != null) {
+            final MergePolicy.OneMerge toRun = merge;
+            mergers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer.merge(toRun);
+                    } catch (AlreadyClosedException e) {
+                        //closed while the merge was queued
+                    } catch (Throwable t) {
+                        logger.error("Unable to merge segments", t);
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        //the threads are shared by all indexers
+    }
+
+    /**
+     * A lucene rate limiter backed by a thread safe rate limiter, so that it can be shared by all the directories.
+     */
+    static class Throttle extends RateLimiter {
+        //as in RateLimiter.SimpleRateLimiter, writers pause about every 5 ms worth of bytes
+        private static final int MIN_PAUSE_CHECK_MSEC = 5;
+        private volatile double mbPerSec;
+        private volatile long minPauseCheckBytes;
+        private final com.google.common.util.concurrent.RateLimiter limiter;
+
+        Throttle(double mbPerSec) {
+            this.limiter = com.google.common.util.concurrent.RateLimiter.create(bytesPerSec(mbPerSec));
+            this.mbPerSec = mbPerSec;
+            this.minPauseCheckBytes = minPauseCheckBytes(mbPerSec);
+        }
+
+        private static long minPauseCheckBytes(double mbPerSec) {
+            return (long) ((MIN_PAUSE_CHECK_MSEC / 1000.0) * mbPerSec * 1024 * 1024);
+        }
+
+        private static double bytesPerSec(double mbPerSec) {
+            return mbPerSec > 0 ? mbPerSec * 1024 * 1024 : Double.MAX_VALUE;
+        }
+
+        @Override
+        public void setMbPerSec(double mbPerSec) {
+            this.mbPerSec = mbPerSec;
+            this.minPauseCheckBytes = minPauseCheckBytes(mbPerSec);
+            limiter.setRate(bytesPerSec(mbPerSec));
+        }
+
+        @Override
+        public long getMinPauseCheckBytes() {
+            return minPauseCheckBytes;
+        }
+
+        @Override
+        public double getMbPerSec() {
+            return mbPerSec;
+        }
+
+        @Override
+        public long pause(long bytes) {
+            if (mbPerSec <= 0 || bytes <= 0) return 0;
+            long started = System.nanoTime();
+            limiter.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+            return System.nanoTime() - started;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.tuplejump.stargate.Constants;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.apache.cassandra.concurrent.DebuggableScheduledThreadPoolExecutor;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.util.Bits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node wide background task which deletes the documents made stale by later writes of the same primary key.
+ * Updates add a document per write and searches only clean up the rows they read, so the older versions of rows
+ * which are not searched for stay in the index. The sweeper walks the primary key terms of each indexer, merged
+ * from the terms of its segments, keeps the document with the latest timestamp for each key and deletes the rest
+ * in batches. Only keys found in more than one document are read, and nothing is held per key.
+ * Both the documents read and deleted count against a rate limit, so it does not starve the writes.
+ * The interval, rate and batch size are set using the sg.sweep.interval.ms, sg.sweep.docs.per.sec and sg.sweep.batch
+ * system properties. An interval of 0 turns the sweeper off.
+ */
+public class StaleDocumentSweeper {
+    private static final Logger logger = LoggerFactory.getLogger(StaleDocumentSweeper.class);
+
+    public static final long INTERVAL_MS = Long.getLong("sg.sweep.interval.ms", TimeUnit.MINUTES.toMillis(10));
+
+    public static final int DOCS_PER_SEC = Integer.getInteger("sg.sweep.docs.per.sec", 100000);
+
+    public static final int BATCH_SIZE = Integer.getInteger("sg.sweep.batch", 1000);
+
+    public static final StaleDocumentSweeper instance = new StaleDocumentSweeper();
+
+    private final Set<NearRealTimeIndexer> indexers = Collections.newSetFromMap(new ConcurrentHashMap<NearRealTimeIndexer, Boolean>());
+
+    private final ScheduledExecutorService sweeper = new DebuggableScheduledThreadPoolExecutor(1, "SGStaleSweeper", Thread.MIN_PRIORITY);
+
+    private final RateLimiter limiter = RateLimiter.create(DOCS_PER_SEC);
+
+    private final Counter reclaimed = Metrics.newCounter(StaleDocumentSweeper.class, "DocumentsReclaimed");
+
+    private StaleDocumentSweeper() {
+        if (INTERVAL_MS > 0) {
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sweepAll();
+                }
+            }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void register(NearRealTimeIndexer indexer) {
+        indexers.add(indexer);
+    }
+
+    public void unregister(NearRealTimeIndexer indexer) {
+        indexers.remove(indexer);
+    }
+
+    public long getDocumentsReclaimed() {
+        return reclaimed.count();
+    }
+
+    void sweepAll() {
+        List<NearRealTimeIndexer> toSweep = new ArrayList<>(indexers);
+        for (NearRealTimeIndexer indexer : toSweep) {
+            try {
+                long deleted = sweep(indexer);
+                if (deleted > 0)
+                    logger.warn("Reclaimed {} stale documents from {}", deleted, indexer.getMetricScope());
+            } catch (AlreadyClosedException e) {
+                //closed while being swept
+            } catch (Exception e) {
+                logger.error("Unable to sweep stale documents", e);
+            }
+        }
+    }
+
+    /**
+     * Deletes all but the latest document of each primary key.
+     *
+     * @return the number of documents deleted.
+     */
+    long sweep(NearRealTimeIndexer indexer) throws IOException {
+        IndexSearcher searcher = indexer.indexSearcherReferenceManager.acquire();
+        long deleted = 0;
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            Terms pkNames = MultiFields.getTerms(reader, Constants.PK_NAME_STORED);
+            NumericDocValues timestamps = MultiDocValues.getNumericValues(reader, Constants.CF_TS_DOC_VAL);
+            if (pkNames == null || timestamps == null) return 0;
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            TermsEnum terms = pkNames.iterator(null);
+            DocsEnum docs = null;
+            int[] stale = new int[4];
+            int read = 0;
+            int inBatch = 0;
+            sweep:
+            while (terms.next() != null) {
+                if (++read >= BATCH_SIZE) {
+                    limiter.acquire(read);
+                    read = 0;
+                }
+                //counts deleted documents too, so a key in one document is never stale
+                if (terms.docFreq() < 2) continue;
+                docs = terms.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+                int latestDoc = -1;
+                long latestTs = 0;
+                int staleCount = 0;
+                for (int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc()) {
+                    read++;
+                    long ts = timestamps.get(doc);
+                    //of equal timestamps the last written wins
+                    if (latestDoc < 0 || ts >= latestTs) {
+                        if (latestDoc >= 0) stale = add(stale, staleCount++, latestDoc);
+                        latestDoc = doc;
+                        latestTs = ts;
+                    } else {
+                        stale = add(stale, staleCount++, doc);
+                    }
+                }
+                for (int i = 0; i < staleCount; i++) {
+                    //the segment has been merged away since the searcher was opened. the next sweep gets it.
+                    if (indexer.indexWriter.tryDeleteDocument(reader, stale[i]) == -1) break sweep;
+                    deleted++;
+                    if (++inBatch == BATCH_SIZE) {
+                        limiter.acquire(inBatch);
+                        reclaimed.inc(inBatch);
+                        indexer.refresher.request();
+                        inBatch = 0;
+                    }
+                }
+            }
+            reclaimed.inc(inBatch);
+        } finally {
+            indexer.indexSearcherReferenceManager.release(searcher);
+        }
+        if (deleted > 0) indexer.refresher.request();
+        return deleted;
+    }
+
+    private static int[] add(int[] docs, int count, int doc) {
+        if (count == docs.length) docs = Arrays.copyOf(docs, count * 2);
+        docs[count] = doc;
+        return docs;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.lucene.query.Search;
+import com.tuplejump.stargate.lucene.query.Sort;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What new segments are warmed with before they are searched, set using the "warming" object at the root of the index options.
+ * The doc values and norms of all fields are loaded unless docValues is off. The fields in sort are loaded for sorting
+ * and the searches in queries are run, so that the filters and fields they use are loaded too.
+ */
+public class WarmingOptions {
+
+    @JsonProperty
+    Boolean docValues;
+
+    @JsonProperty
+    Sort sort;
+
+    @JsonProperty
+    List<Search> queries;
+
+    public boolean isDocValues() {
+        return docValues != null ? docValues : true;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    public List<Search> getQueries() {
+        return queries != null ? queries : Collections.<Search>emptyList();
+    }
+
+}
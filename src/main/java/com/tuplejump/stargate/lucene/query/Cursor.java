@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene.query;
+
+import org.apache.cassandra.io.util.DataOutputBuffer;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An opaque token for the position of a result in the order of a search, made of the values the result was sorted by.
+ * These are the values of the sort fields or the score, followed by the primary key which breaks ties, so that
+ * a token always points to one row. A search given a token with "after" returns only the rows sorted after it.
+ */
+public class Cursor {
+
+    private static final byte NULL = 0;
+    private static final byte FLOAT = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte BYTES = 5;
+
+    public static String encode(Object[] sortValues) {
+        DataOutputBuffer out = new DataOutputBuffer();
+        try {
+            out.writeByte(sortValues.length);
+            for (Object value : sortValues) {
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else if (value instanceof Float) {
+                    out.writeByte(FLOAT);
+                    out.writeFloat((Float) value);
+                } else if (value instanceof Integer) {
+                    out.writeByte(INT);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                } else if (value instanceof BytesRef) {
+                    BytesRef bytes = (BytesRef) value;
+                    out.writeByte(BYTES);
+                    out.writeInt(bytes.length);
+                    out.write(bytes.bytes, bytes.offset, bytes.length);
+                } else {
+                    throw new IllegalArgumentException("Cannot make a cursor with sort value " + value);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return ByteBufferUtil.bytesToHex(ByteBuffer.wrap(out.getData(), 0, out.getLength()));
+    }
+
+    public static Object[] decode(String token) {
+        try {
+            ByteBuffer buf = ByteBufferUtil.hexToBytes(token);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(ByteBufferUtil.getArray(buf)));
+            Object[] sortValues = new Object[in.readUnsignedByte()];
+            for (int i = 0; i < sortValues.length; i++) {
+                byte type = in.readByte();
+                switch (type) {
+                    case NULL:
+                        break;
+                    case FLOAT:
+                        sortValues[i] = in.readFloat();
+                        break;
+                    case INT:
+                        sortValues[i] = in.readInt();
+                        break;
+                    case LONG:
+                        sortValues[i] = in.readLong();
+                        break;
+                    case DOUBLE:
+                        sortValues[i] = in.readDouble();
+                        break;
+                    case BYTES:
+                        byte[] bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        sortValues[i] = new BytesRef(bytes);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid cursor " + token);
+                }
+            }
+            return sortValues;
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor " + token, e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.WAH8DocIdSet;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A memory bounded LRU cache of the documents matching the filters of an index, per segment.
+ * The matches are kept as compressed WAH8 bit sets keyed by the filter and the core of the segment, so they
+ * stay valid across NRT reopens, with deletes applied when they are used. The entries of a segment are
+ * dropped when its core is closed, as when it is merged away.
+ * The size of the cache is set in MB using filterCacheMB in the "search" object of the index options.
+ */
+public class FilterCache {
+
+    //of segments no filter matches
+    private static final DocIdSet EMPTY = new WAH8DocIdSet.Builder().build();
+
+    private final Cache<Key, DocIdSet> sets;
+    //the keys of the entries of each segment core, so that they are dropped without scanning the cache
+    private final ConcurrentMap<Object, Set<Key>> keysByCore = new ConcurrentHashMap<>();
+    private final MetricName[] metricNames;
+
+    private static class Key {
+        final Object core;
+        final Filter filter;
+
+        Key(Object core, Filter filter) {
+            this.core = core;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return core == other.core && filter.equals(other.filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(core) + filter.hashCode();
+        }
+    }
+
+    public FilterCache(long maxMB, String scope) {
+        this.sets = CacheBuilder.newBuilder()
+                .maximumWeight(maxMB * 1024 * 1024)
+                .weigher(new Weigher<Key, DocIdSet>() {
+                    @Override
+                    public int weigh(Key key, DocIdSet set) {
+                        long bytes = set instanceof WAH8DocIdSet ? ((WAH8DocIdSet) set).ramBytesUsed() : 0;
+                        return (int) Math.min(Integer.MAX_VALUE, bytes + 64);
+                    }
+                })
+                .removalListener(new RemovalListener<Key, DocIdSet>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, DocIdSet> removal) {
+                        Set<Key> keys = keysByCore.get(removal.getKey().core);
+                        if (keys != null) keys.remove(removal.getKey());
+                    }
+                })
+                .recordStats()
+                .build();
+        MetricName hits = new MetricName(FilterCache.class, "Hits", scope);
+        MetricName misses = new MetricName(FilterCache.class, "Misses", scope);
+        MetricName size = new MetricName(FilterCache.class, "Entries", scope);
+        Metrics.newGauge(hits, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return sets.stats().hitCount();
+            }
+        });
+        Metrics.newGauge(misses, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return sets.stats().missCount();
+            }
+        });
+        Metrics.newGauge(size, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return sets.size();
+            }
+        });
+        metricNames = new MetricName[]{hits, misses, size};
+    }
+
+    /**
+     * @return the filter, with its matches cached in this cache.
+     */
+    public Filter cached(Filter filter) {
+        return new CachedFilter(filter);
+    }
+
+    /**
+     * @return the documents of the segment matching the filter, deleted or not.
+     */
+    DocIdSet get(AtomicReader reader, Filter filter) throws IOException {
+        Object core = reader.getCoreCacheKey();
+        Key key = new Key(core, filter);
+        DocIdSet set = sets.getIfPresent(key);
+        if (set != null) return set;
+        set = compress(filter.getDocIdSet(reader.getContext(), null));
+        Set<Key> keys = keysByCore.get(core);
+        if (keys == null) {
+            Set<Key> added = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+            keys = keysByCore.putIfAbsent(core, added);
+            if (keys == null) {
+                keys = added;
+                onCoreClosed(reader, core);
+            }
+        }
+        keys.add(key);
+        sets.put(key, set);
+        return set;
+    }
+
+    private static DocIdSet compress(DocIdSet set) throws IOException {
+        DocIdSetIterator it = set == null ? null : set.iterator();
+        if (it == null) return EMPTY;
+        return new WAH8DocIdSet.Builder().add(it).build();
+    }
+
+    private void onCoreClosed(AtomicReader reader, final Object core) {
+        if (reader instanceof SegmentReader) {
+            ((SegmentReader) reader).addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+                @Override
+                public void onClose(Object ownerCoreCacheKey) {
+                    purge(core);
+                }
+            });
+        } else {
+            reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+                @Override
+                public void onClose(IndexReader closed) {
+                    purge(core);
+                }
+            });
+        }
+    }
+
+    private void purge(Object core) {
+        Set<Key> keys = keysByCore.remove(core);
+        if (keys != null) sets.invalidateAll(keys);
+    }
+
+    /**
+     * @return the number of cached filter matches.
+     */
+    public long size() {
+        return sets.size();
+    }
+
+    public void close() {
+        sets.invalidateAll();
+        keysByCore.clear();
+        for (MetricName name : metricNames) {
+            Metrics.defaultRegistry().removeMetric(name);
+        }
+    }
+
+    private class CachedFilter extends Filter {
+        private final Filter filter;
+
+        CachedFilter(Filter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+            return BitsFilteredDocIdSet.wrap(get(context.reader(), filter), acceptDocs);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CachedFilter && filter.equals(((CachedFilter) o).filter);
+        }
+
+        @Override
+        public int hashCode() {
+            return filter.hashCode() ^ 0x5F1C;
+        }
+
+        @Override
+        public String toString() {
+            return "CachedFilter(" + filter + ")";
+        }
+    }
+}
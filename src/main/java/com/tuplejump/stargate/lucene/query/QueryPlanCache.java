@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.tuplejump.stargate.lucene.Options;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * A bounded LRU cache of the searches of an index by their JSON, along with their lucene queries and sorts,
+ * so that searches repeated often are not parsed and analyzed again each time. Queries are immutable once
+ * made and are shared by the searches using them. The cursor of a paged search is not part of the key, so all the
+ * pages of a search share one plan.
+ * The cache is made for one Options of an index and is dropped along with them when the index options change.
+ * The number of searches kept is set using the sg.query.cache.size system property, 0 turns the cache off.
+ * The hits, misses and hit rate are published over JMX with the index as the scope.
+ */
+public class QueryPlanCache {
+
+    public static final int SIZE = Integer.getInteger("sg.query.cache.size", 1000);
+
+    private static final String AFTER = "after";
+    private static final String PAGING = "paging";
+
+    /**
+     * A parsed search along with its lucene query and sort.
+     */
+    public static class Plan {
+        public final Search search;
+        public final Query query;
+        //null when the search does not sort, with the primary key to break ties when paging
+        public final SortField[] sort;
+        //the sort values to start after, null for the first page. Never cached, as each page has its own
+        public final Object[] after;
+
+        Plan(Search search, Options options, FilterCache filterCache) throws Exception {
+            this.search = search;
+            this.query = search.query(options, filterCache);
+            this.sort = search.pagingSort(options);
+            this.after = search.after();
+        }
+
+        private Plan(Plan plan, Object[] after) {
+            this.search = plan.search;
+            this.query = plan.query;
+            this.sort = plan.sort;
+            this.after = after;
+        }
+    }
+
+    private final Options options;
+    private final Cache<String, Plan> plans;
+    private final MetricName[] metricNames;
+    //null when filters are not cached
+    private final FilterCache filterCache;
+
+    public QueryPlanCache(Options options, String scope) {
+        this.options = options;
+        long filterCacheMB = options.primary.getSearch().getFilterCacheMB();
+        this.filterCache = filterCacheMB > 0 ? new FilterCache(filterCacheMB, scope) : null;
+        this.plans = CacheBuilder.newBuilder().maximumSize(Math.max(0, SIZE)).recordStats().build();
+        MetricName hits = new MetricName(QueryPlanCache.class, "Hits", scope);
+        MetricName misses = new MetricName(QueryPlanCache.class, "Misses", scope);
+        MetricName hitRate = new MetricName(QueryPlanCache.class, "HitRate", scope);
+        Metrics.newGauge(hits, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return plans.stats().hitCount();
+            }
+        });
+        Metrics.newGauge(misses, new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return plans.stats().missCount();
+            }
+        });
+        Metrics.newGauge(hitRate, new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return plans.stats().hitRate();
+            }
+        });
+        metricNames = new MetricName[]{hits, misses, hitRate};
+    }
+
+    /**
+     * @param json the search as given in the CQL query.
+     * @return the plan of the search, made and cached if it is not cached yet.
+     */
+    public Plan get(String json) throws Exception {
+        String after = null;
+        if (json.contains(AFTER)) {
+            //the pages of a search share its plan, so the cursor is taken out of the key
+            JsonNode tree = readTree(json);
+            JsonNode cursor = tree.isObject() ? ((ObjectNode) tree).remove(AFTER) : null;
+            if (cursor != null) {
+                after = cursor.getTextValue();
+                ((ObjectNode) tree).put(PAGING, true);
+                json = tree.toString();
+            }
+        }
+        Plan plan = plans.getIfPresent(json);
+        if (plan == null) {
+            //searches which do not parse are not cached and fail every time
+            plan = new Plan(Search.fromJson(json), options, filterCache);
+            plans.put(json, plan);
+        }
+        return after == null ? plan : new Plan(plan, Cursor.decode(after));
+    }
+
+    private static JsonNode readTree(String json) {
+        try {
+            return Options.jsonMapper.readTree(json);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot parse JSON index expression: " + json, e);
+        }
+    }
+
+    /**
+     * @return the cache of filter matches shared by the plans, null when filters are not cached.
+     */
+    public FilterCache getFilterCache() {
+        return filterCache;
+    }
+
+    public long size() {
+        return plans.size();
+    }
+
+    /**
+     * Drops the cached plans, the cached filter matches and the metrics of this cache.
+     */
+    public void close() {
+        plans.invalidateAll();
+        if (filterCache != null) filterCache.close();
+        for (MetricName name : metricNames) {
+            Metrics.defaultRegistry().removeMetric(name);
+        }
+    }
+}
@@ -16,7 +16,9 @@
 
 package com.tuplejump.stargate.lucene.query;
 
+import com.tuplejump.stargate.Constants;
 import com.tuplejump.stargate.lucene.Options;
+import com.tuplejump.stargate.lucene.SearchOptions;
 import com.tuplejump.stargate.lucene.query.function.Function;
 import com.tuplejump.stargate.lucene.query.function.NoOp;
 import org.apache.lucene.search.*;
@@ -25,6 +27,8 @@ import org.codehaus.jackson.annotate.JsonProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+
 /**
  * Class representing an Lucene's index search. It is formed by an optional querying {@link Condition} and an optional
  * filtering {@link Condition}. It can be translated to a Lucene's {@link Query} using a {@link com.tuplejump.stargate.lucene.Options}.
@@ -50,6 +54,31 @@ public class Search {
 
     private final Function function;
 
+    /**
+     * How fresh the searcher needs to be. Uses the index default when not set.
+     */
+    private final SearchOptions.Consistency consistency;
+
+    /**
+     * The staleness allowed for bounded consistency.
+     */
+    private final Long stalenessMs;
+
+    /**
+     * The search pool to run on. Uses the pool of the index when not set.
+     */
+    private final String pool;
+
+    /**
+     * The cursor of the last row of the previous page, to return only the rows after it.
+     */
+    private final String after;
+
+    /**
+     * Whether to order ties by primary key and return a cursor with each row, so that the results can be paged.
+     */
+    private final Boolean paging;
+
     /**
      * Returns a new {@link Search} composed by the specified querying and filtering conditions.
      *
@@ -59,8 +88,18 @@ public class Search {
     @JsonCreator
     public Search(@JsonProperty("query") Condition queryCondition,
                   @JsonProperty("filter") Condition filterCondition,
-                  @JsonProperty("sort") Sort sort, @JsonProperty("function") Function function) {
+                  @JsonProperty("sort") Sort sort, @JsonProperty("function") Function function,
+                  @JsonProperty("consistency") SearchOptions.Consistency consistency,
+                  @JsonProperty("stalenessMs") Long stalenessMs,
+                  @JsonProperty("pool") String pool,
+                  @JsonProperty("after") String after,
+                  @JsonProperty("paging") Boolean paging) {
         this.queryCondition = queryCondition;
+        this.consistency = consistency;
+        this.stalenessMs = stalenessMs;
+        this.pool = pool;
+        this.after = after;
+        this.paging = paging;
         this.filterCondition = filterCondition;
         this.sort = sort;
         if (function == null) this.function = new NoOp();
@@ -93,8 +132,21 @@ public class Search {
      * @return The Lucene's {@link Query} representation of this search.
      */
     public Query query(Options schema) throws Exception {
+        return query(schema, null);
+    }
+
+    /**
+     * Returns the Lucene's {@link Query} representation of this search, with the matches of the filtering condition
+     * kept in the given cache.
+     *
+     * @param schema
+     * @param filterCache the cache of filter matches, maybe {@code null} meaning no caching.
+     * @return The Lucene's {@link Query} representation of this search.
+     */
+    public Query query(Options schema, FilterCache filterCache) throws Exception {
         Query query = queryCondition == null ? null : queryCondition.query(schema);
         Filter filter = filterCondition == null ? null : filterCondition.filter(schema);
+        if (filter != null && filterCache != null) filter = filterCache.cached(filter);
         if (query == null && filter == null) {
             return new MatchAllDocsQuery();
         } else if (query != null && filter == null) {
@@ -106,10 +158,59 @@ public class Search {
         }
     }
 
+    /**
+     * Returns the oldest a searcher may be for this search, falling back to the search options of the index.
+     *
+     * @param schema
+     * @return 0 for strict, Long.MAX_VALUE for open, else the bounded staleness in milli seconds.
+     */
+    public long maxStalenessMs(Options schema) {
+        SearchOptions defaults = schema.primary.getSearch();
+        if (consistency == null) return defaults.maxStalenessMs();
+        return SearchOptions.maxStalenessMs(consistency, stalenessMs != null ? stalenessMs : defaults.getStalenessMs());
+    }
+
+    /**
+     * @return the name of the search pool to run on, null for the pool of the index.
+     */
+    public String getPool() {
+        return pool;
+    }
+
     public org.apache.lucene.search.SortField[] sort(Options schema) {
         return sort == null ? null : sort.sort(schema);
     }
 
+    /**
+     * @return true if the search asks for cursors or starts after one.
+     */
+    public boolean isPaging() {
+        return after != null || Boolean.TRUE.equals(paging);
+    }
+
+    /**
+     * Returns the sort of this search. When paging, the primary key is appended to break ties, so that every row
+     * has one position in the order and a page can start right after the cursor of the last row of the previous one.
+     *
+     * @param schema
+     * @return the sort fields, null to sort by relevance alone.
+     */
+    public org.apache.lucene.search.SortField[] pagingSort(Options schema) {
+        org.apache.lucene.search.SortField[] fields = usesSorting() ? sort(schema) : null;
+        if (!isPaging()) return fields;
+        if (fields == null) fields = new org.apache.lucene.search.SortField[]{org.apache.lucene.search.SortField.FIELD_SCORE};
+        org.apache.lucene.search.SortField[] paged = Arrays.copyOf(fields, fields.length + 1);
+        paged[fields.length] = new org.apache.lucene.search.SortField(Constants.PK_NAME_STORED, org.apache.lucene.search.SortField.Type.STRING);
+        return paged;
+    }
+
+    /**
+     * @return the sort values of the cursor to start after, null for the first page.
+     */
+    public Object[] after() {
+        return after == null ? null : Cursor.decode(after);
+    }
+
     /**
      * Returns a new {@link Search} from the specified JSON {@code String}.
      *
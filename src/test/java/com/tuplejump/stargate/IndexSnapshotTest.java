@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate;
+
+import com.tuplejump.stargate.cassandra.IndexingQueue;
+import com.tuplejump.stargate.lucene.Indexer;
+import com.tuplejump.stargate.lucene.SearcherCallback;
+import junit.framework.Assert;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Takes and releases references to index snapshots while they are retired, checking that the indexers a snapshot
+ * retires are removed once, and only after the last reference to it is released.
+ */
+public class IndexSnapshotTest {
+
+    @Test
+    public void shouldRemoveRetiredIndexersAfterLastRelease() {
+        CountingIndexer indexer = new CountingIndexer();
+        IndexSnapshot snapshot = snapshot();
+        Assert.assertTrue(snapshot.ref());
+        Assert.assertTrue(snapshot.ref());
+        snapshot.retire(Collections.<Indexer>singletonList(indexer));
+        snapshot.unref();
+        Assert.assertEquals(0, indexer.removed.get());
+        snapshot.unref();
+        Assert.assertEquals(1, indexer.removed.get());
+        //the replacement has to be used from now on
+        Assert.assertFalse(snapshot.ref());
+        Assert.assertEquals(1, indexer.removed.get());
+    }
+
+    @Test
+    public void shouldRemoveRetiredIndexersRightAwayWhenUnused() {
+        CountingIndexer indexer = new CountingIndexer();
+        IndexSnapshot snapshot = snapshot();
+        snapshot.retire(Collections.<Indexer>singletonList(indexer));
+        Assert.assertEquals(1, indexer.removed.get());
+        Assert.assertFalse(snapshot.ref());
+    }
+
+    @Test
+    public void shouldNeverRetireEmptySnapshot() {
+        IndexSnapshot.EMPTY.retire(Collections.<Indexer>emptyList());
+        Assert.assertTrue(IndexSnapshot.EMPTY.ref());
+        IndexSnapshot.EMPTY.unref();
+        Assert.assertTrue(IndexSnapshot.EMPTY.ref());
+        IndexSnapshot.EMPTY.unref();
+    }
+
+    @Test
+    public void shouldNotRemoveIndexersInUseByConcurrentReaders() throws Exception {
+        for (int run = 0; run < 50; run++) {
+            final CountingIndexer indexer = new CountingIndexer();
+            final AtomicReference<IndexSnapshot> published = new AtomicReference<>(snapshot());
+            final AtomicBoolean removedInUse = new AtomicBoolean();
+            final AtomicBoolean stop = new AtomicBoolean();
+            final CountDownLatch started = new CountDownLatch(4);
+            Thread[] readers = new Thread[4];
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        while (!stop.get()) {
+                            //as RowIndex acquires its snapshot
+                            IndexSnapshot current = published.get();
+                            if (!current.ref()) continue;
+                            if (indexer.removed.get() != 0 && current != published.get()) removedInUse.set(true);
+                            Thread.yield();
+                            if (indexer.removed.get() != 0 && current != published.get()) removedInUse.set(true);
+                            current.unref();
+                        }
+                    }
+                };
+                readers[i].start();
+            }
+            started.await();
+            IndexSnapshot previous = published.getAndSet(snapshot());
+            previous.retire(Collections.<Indexer>singletonList(indexer));
+            Thread.sleep(5);
+            stop.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            Assert.assertFalse(removedInUse.get());
+            Assert.assertEquals(1, indexer.removed.get());
+            Assert.assertFalse(previous.ref());
+        }
+    }
+
+    private static IndexSnapshot snapshot() {
+        return new IndexSnapshot(null, null, TokenRouter.EMPTY, Collections.<Indexer, IndexingQueue>emptyMap());
+    }
+
+    static class CountingIndexer implements Indexer {
+        final AtomicInteger removed = new AtomicInteger();
+
+        @Override
+        public boolean removeIndex() {
+            removed.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean truncate(long l) {
+            return true;
+        }
+
+        @Override
+        public long getLiveSize() {
+            return 0;
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void insert(Iterable<Field> doc) {
+        }
+
+        @Override
+        public void insertAll(Iterable<? extends Iterable<Field>> docs) {
+        }
+
+        @Override
+        public void delete(Term... idTerm) {
+        }
+
+        @Override
+        public void delete(Query query) {
+        }
+
+        @Override
+        public Analyzer getAnalyzer() {
+            return null;
+        }
+
+        @Override
+        public void release(IndexSearcher searcher) {
+        }
+
+        @Override
+        public IndexSearcher acquire() {
+            return null;
+        }
+
+        @Override
+        public IndexSearcher acquire(long maxStalenessMs) {
+            return null;
+        }
+
+        @Override
+        public <T> T search(SearcherCallback<T> searcherCallback) {
+            return null;
+        }
+
+        @Override
+        public void upsert(Iterable<Field> doc, Term idTerm) {
+        }
+
+        @Override
+        public void pauseRefreshes() {
+        }
+
+        @Override
+        public void resumeRefreshes() {
+        }
+
+        @Override
+        public boolean retainsDocuments() {
+            return false;
+        }
+    }
+}
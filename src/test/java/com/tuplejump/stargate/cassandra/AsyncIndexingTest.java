@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.apache.cassandra.service.StorageService;
+import org.junit.Test;
+
+/**
+ * Writes, deletes and rewrites rows through the asynchronous indexing queues, checking that they reach the index
+ * in the order they were made and that a row which cannot be indexed does not drop the rest of its batch.
+ */
+public class AsyncIndexingTest extends IndexTestBase {
+    String keyspace = "dummyksAsync";
+
+    public AsyncIndexingTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldKeepOrderOfWritesAndDeletes() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            for (int i = 0; i < 40; i++) {
+                insert(i, "hello tag" + i, "CA");
+            }
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 10; i++) {
+                    getSession().execute("delete from " + keyspace + ".ASYNC where key = " + i);
+                }
+                //written again right behind their deletes
+                for (int i = 0; i < 5; i++) {
+                    insert(i, "hello tag" + i, "NY");
+                }
+                for (int i = 10; i < 15; i++) {
+                    getSession().execute("update " + keyspace + ".ASYNC set tags = 'hello tag" + i + "', state = 'TX' where key = " + i);
+                }
+            }
+            flush();
+            Assert.assertEquals(35, countResults("ASYNC", "magic = '" + strict(q("tags", "hello")) + "'", false));
+            Assert.assertEquals(5, countResults("ASYNC", "magic = '" + strict(q("state", "NY")) + "'", false));
+            Assert.assertEquals(5, countResults("ASYNC", "magic = '" + strict(q("state", "TX")) + "'", false));
+            Assert.assertEquals(25, countResults("ASYNC", "magic = '" + strict(q("state", "CA")) + "'", false));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldIndexRestOfBatchWhenRowFails() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            StringBuilder immense = new StringBuilder();
+            while (immense.length() < 40000) immense.append("immense");
+            for (int i = 0; i < 20; i++) {
+                //too long for a term, so this row cannot be indexed
+                insert(i, "hello tag" + i, i == 7 ? immense.toString() : "CA");
+            }
+            flush();
+            Assert.assertEquals(19, countResults("ASYNC", "magic = '" + strict(q("state", "CA")) + "'", false));
+            insert(7, "hello tag7", "CA");
+            flush();
+            Assert.assertEquals(20, countResults("ASYNC", "magic = '" + strict(q("state", "CA")) + "'", false));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private void insert(int key, String tags, String state) {
+        getSession().execute("insert into " + keyspace + ".ASYNC (key,tags,state) values (" + key + ",'" + tags + "','" + state + "')");
+    }
+
+    private void flush() throws Exception {
+        //writes out what is queued and commits the indexes
+        StorageService.instance.forceKeyspaceFlush(keyspace.toLowerCase(), "async");
+    }
+
+    private String strict(String search) {
+        return search.substring(0, search.length() - 1) + ", consistency:\"strict\"}";
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"indexing\":{\"async\":true, \"batchSize\":8, \"lingerMs\":5},\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE ASYNC(key int, tags varchar, state varchar, magic text, PRIMARY KEY(key))");
+        getSession().execute("CREATE CUSTOM INDEX async_magic ON ASYNC(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+}
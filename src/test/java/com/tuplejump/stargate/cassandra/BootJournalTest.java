@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.Schema;
+import org.apache.cassandra.db.ArrayBackedSortedColumns;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.index.PerRowSecondaryIndex;
+import org.apache.cassandra.db.index.SecondaryIndexSearcher;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Journals rows and replays them to an index which records the order it gets them in, checking that the rows of a
+ * partition are indexed in the order they were written, also when more are written during the replay, and that
+ * a journal which overflowed asks for a rebuild.
+ */
+public class BootJournalTest extends IndexTestBase {
+    String keyspace = "dummyksJournal";
+    static final int KEYS = 10;
+
+    public BootJournalTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldReplayRowsOfPartitionInOrder() throws Exception {
+        createKS(keyspace);
+        try {
+            CFMetaData table = createTable();
+            BootJournal journal = new BootJournal(journalDir());
+            RecordingIndex index = new RecordingIndex(0);
+            for (int value = 0; value < 50; value++) {
+                for (int key = 0; key < KEYS; key++) {
+                    Assert.assertTrue(journal.add(key(key), row(table, value)));
+                }
+            }
+            Assert.assertEquals(0, index.indexed.get());
+            Assert.assertTrue(journal.replay(index));
+            index.assertWritten(50);
+            //the journal takes no rows once replayed
+            Assert.assertFalse(journal.add(key(0), row(table, 50)));
+            Assert.assertTrue(journal.replay(index));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldReplayRowsWrittenDuringReplay() throws Exception {
+        createKS(keyspace);
+        try {
+            final CFMetaData table = createTable();
+            final BootJournal journal = new BootJournal(journalDir());
+            //slow enough that the replay is still going on when the writes below start
+            final RecordingIndex index = new RecordingIndex(5);
+            for (int value = 0; value < 3; value++) {
+                for (int key = 0; key < KEYS; key++) {
+                    journal.add(key(key), row(table, value));
+                }
+            }
+            final AtomicInteger journaled = new AtomicInteger();
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        index.replaying.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    for (int value = 3; value < 200; value++) {
+                        for (int key = 0; key < KEYS; key++) {
+                            //as RowIndex writes a row
+                            if (journal.add(key(key), row(table, value))) journaled.incrementAndGet();
+                            else index.index(key(key), row(table, value));
+                        }
+                    }
+                }
+            };
+            writer.start();
+            Assert.assertTrue(journal.replay(index));
+            writer.join();
+            Assert.assertTrue(journaled.get() > 0);
+            index.assertWritten(200);
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldAskForRebuildWhenOverflowed() throws Exception {
+        createKS(keyspace);
+        try {
+            CFMetaData table = createTable();
+            BootJournal journal = new BootJournal(journalDir(), 1000);
+            RecordingIndex index = new RecordingIndex(0);
+            for (int value = 0; value < 50; value++) {
+                //rows past the limit are dropped, and are not indexed right away either
+                Assert.assertTrue(journal.add(key(value % KEYS), row(table, value)));
+            }
+            Assert.assertFalse(journal.replay(index));
+            Assert.assertEquals(0, index.indexed.get());
+            Assert.assertFalse(journal.add(key(0), row(table, 50)));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private CFMetaData createTable() {
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE JOURNAL(key int PRIMARY KEY, value int) WITH COMPACT STORAGE");
+        return Schema.instance.getCFMetaData(keyspace.toLowerCase(), "journal");
+    }
+
+    private static File journalDir() throws Exception {
+        return new File(Files.createTempDirectory("sgjournal").toFile(), "journal");
+    }
+
+    private static ByteBuffer key(int key) {
+        return Int32Type.instance.decompose(key);
+    }
+
+    private static ColumnFamily row(CFMetaData table, int value) {
+        ColumnFamily cf = ArrayBackedSortedColumns.factory.create(table);
+        cf.addColumn(new Column(ByteBufferUtil.bytes("value"), Int32Type.instance.decompose(value), value));
+        return cf;
+    }
+
+    /**
+     * Records the values indexed for each key.
+     */
+    static class RecordingIndex extends PerRowSecondaryIndex {
+        final Map<Integer, List<Integer>> values = new HashMap<>();
+        final AtomicInteger indexed = new AtomicInteger();
+        final CountDownLatch replaying = new CountDownLatch(1);
+        final long sleepMs;
+
+        RecordingIndex(long sleepMs) {
+            this.sleepMs = sleepMs;
+        }
+
+        @Override
+        public void index(ByteBuffer rowKey, ColumnFamily cf) {
+            replaying.countDown();
+            int key = Int32Type.instance.compose(rowKey);
+            int value = Int32Type.instance.compose(cf.getColumn(ByteBufferUtil.bytes("value")).value());
+            synchronized (values) {
+                List<Integer> written = values.get(key);
+                if (written == null) values.put(key, written = new ArrayList<>());
+                written.add(value);
+            }
+            indexed.incrementAndGet();
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        void assertWritten(int count) {
+            Assert.assertEquals(KEYS * count, indexed.get());
+            for (int key = 0; key < KEYS; key++) {
+                List<Integer> written = values.get(key);
+                Assert.assertEquals(count, written.size());
+                for (int value = 0; value < count; value++) {
+                    Assert.assertEquals(value, (int) written.get(value));
+                }
+            }
+        }
+
+        @Override
+        public void delete(DecoratedKey key) {
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public void reload() {
+        }
+
+        @Override
+        public void validateOptions() {
+        }
+
+        @Override
+        public String getIndexName() {
+            return "recording";
+        }
+
+        @Override
+        protected SecondaryIndexSearcher createSecondaryIndexSearcher(Set<ByteBuffer> columns) {
+            return null;
+        }
+
+        @Override
+        public void forceBlockingFlush() {
+        }
+
+        @Override
+        public long getLiveSize() {
+            return 0;
+        }
+
+        @Override
+        public ColumnFamilyStore getIndexCfs() {
+            return null;
+        }
+
+        @Override
+        public void removeIndex(ByteBuffer columnName) {
+        }
+
+        @Override
+        public void invalidate() {
+        }
+
+        @Override
+        public void truncateBlocking(long truncatedAt) {
+        }
+    }
+}
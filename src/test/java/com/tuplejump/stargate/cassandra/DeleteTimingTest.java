@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.Fields;
+import junit.framework.Assert;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * Times a delete heavy workload against a lucene index the way the indexer writes deletes: single primary key
+ * deletes as queries, as they were written before, and as terms, and id and timestamp deletes one query at a time,
+ * as they were written before, and batched into one query per refresh.
+ */
+public class DeleteTimingTest {
+    static final int DOCS = 20000;
+    static final int DELETES = 5000;
+    //deletes made between two refreshes
+    static final int PER_REFRESH = 100;
+
+    @Test
+    public void shouldTimeTermAndBatchedDeletes() throws Exception {
+        long queries = time("Primary key deletes as queries", new Deleter() {
+            @Override
+            public void delete(IndexWriter writer, int doc) throws IOException {
+                BooleanQuery q = new BooleanQuery();
+                q.add(new TermQuery(Fields.idTerm(id(doc))), BooleanClause.Occur.MUST);
+                writer.deleteDocuments(q);
+            }
+        });
+        long terms = time("Primary key deletes as terms", new Deleter() {
+            @Override
+            public void delete(IndexWriter writer, int doc) throws IOException {
+                writer.deleteDocuments(Fields.idTerm(id(doc)));
+            }
+        });
+        long eachIdTs = time("Id and timestamp deletes one at a time", new Deleter() {
+            @Override
+            public void delete(IndexWriter writer, int doc) throws IOException {
+                writer.deleteDocuments(idTs(doc));
+            }
+        });
+        long batchedIdTs = time("Id and timestamp deletes batched per refresh", new Deleter() {
+            BooleanQuery batch = new BooleanQuery();
+
+            @Override
+            public void delete(IndexWriter writer, int doc) {
+                batch.add(idTs(doc), BooleanClause.Occur.SHOULD);
+            }
+
+            @Override
+            public void refresh(IndexWriter writer) throws IOException {
+                writer.deleteDocuments(batch);
+                batch = new BooleanQuery();
+            }
+        });
+        System.out.println("Term deletes took [" + percent(terms, queries) + "]% of query deletes, batched id and timestamp deletes took ["
+                + percent(batchedIdTs, eachIdTs) + "]% of unbatched ones");
+    }
+
+    private long time(String name, Deleter deleter) throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_48, new KeywordAnalyzer()));
+        try {
+            for (int i = 0; i < DOCS; i++) {
+                Document doc = new Document();
+                doc.add(Fields.pkNameIndexed(id(i)));
+                doc.add(Fields.tsField(i, LongField.TYPE_NOT_STORED));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+            DirectoryReader reader = DirectoryReader.open(writer, true);
+            long before = System.nanoTime();
+            for (int i = 0; i < DELETES; i++) {
+                //every fourth document, so deletes are spread over the index
+                deleter.delete(writer, i * (DOCS / DELETES));
+                if ((i + 1) % PER_REFRESH == 0) reader = refresh(writer, reader, deleter);
+            }
+            reader = refresh(writer, reader, deleter);
+            long taken = (System.nanoTime() - before) / 1000000;
+            Assert.assertEquals(DOCS - DELETES, reader.numDocs());
+            reader.close();
+            System.out.println(name + " - [" + DELETES + "] deletes in [" + taken + "] ms");
+            return taken;
+        } finally {
+            writer.close();
+            directory.close();
+        }
+    }
+
+    private DirectoryReader refresh(IndexWriter writer, DirectoryReader reader, Deleter deleter) throws IOException {
+        deleter.refresh(writer);
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer, true);
+        if (newReader == null) return reader;
+        reader.close();
+        return newReader;
+    }
+
+    private static String id(int doc) {
+        return "key" + doc + ":" + doc;
+    }
+
+    private static BooleanQuery idTs(int doc) {
+        BooleanQuery q = new BooleanQuery();
+        q.add(new TermQuery(Fields.idTerm(id(doc))), BooleanClause.Occur.MUST);
+        q.add(new TermQuery(Fields.tsTerm(doc)), BooleanClause.Occur.MUST);
+        return q;
+    }
+
+    private static long percent(long taken, long base) {
+        return base == 0 ? 100 : taken * 100 / base;
+    }
+
+    abstract static class Deleter {
+        abstract void delete(IndexWriter writer, int doc) throws IOException;
+
+        void refresh(IndexWriter writer) throws IOException {
+        }
+    }
+}
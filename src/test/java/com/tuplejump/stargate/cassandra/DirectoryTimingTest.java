@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Loads and searches the same rows with each directory type, with and without the NRT cache and compound files,
+ * and prints the time taken by each, checking that all of them find the same rows.
+ */
+public class DirectoryTimingTest extends IndexTestBase {
+    String keyspace = "dummyksDirectory";
+    static final int ROWS = 2000;
+    static final int ROUNDS = 20;
+
+    static final String[] DIRECTORIES = new String[]{
+            "{}",
+            "{\"type\":\"mmap\"}",
+            "{\"type\":\"nio\"}",
+            "{\"type\":\"simple\"}",
+            "{\"type\":\"mmap\", \"nrtCache\":false}",
+            "{\"type\":\"mmap\", \"compoundFile\":false}"
+    };
+
+    public DirectoryTimingTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldTimeDirectories() throws Exception {
+        createKS(keyspace);
+        try {
+            getSession().execute("USE " + keyspace + ";");
+            for (int i = 0; i < DIRECTORIES.length; i++) {
+                String table = "DIR" + i;
+                createTableAndIndex(table, DIRECTORIES[i]);
+                long before = System.nanoTime();
+                for (int uid = 0; uid < ROWS; uid++) {
+                    getSession().execute("insert into " + keyspace + "." + table + " (part,uid,tags,state) values (" + (uid % 10) + "," + uid + ",'hello" + (uid % 7) + " tag" + uid + "','" + states[uid % 4] + "')");
+                }
+                long loaded = (System.nanoTime() - before) / 1000000;
+                before = System.nanoTime();
+                for (int round = 0; round < ROUNDS; round++) {
+                    //the mix of a term, a prefix, a wildcard and a filtered partition search
+                    Assert.assertEquals(ROWS / 4, countResults(table, "magic = '" + q("state", "CA") + "' LIMIT 5000", false));
+                    Assert.assertEquals(ROWS, countResults(table, "magic = '" + pfq("tags", "hello") + "' LIMIT 5000", false));
+                    //tag1, tag10 to tag19, tag100 to tag199 and tag1000 to tag1999
+                    Assert.assertEquals(1111, countResults(table, "magic = '" + wq("tags", "tag1*") + "' LIMIT 5000", false));
+                    Assert.assertEquals(ROWS / 10, countResults(table, "part = 3 AND magic = '" + q("tags", "hello*") + "' LIMIT 5000", false));
+                }
+                long searched = (System.nanoTime() - before) / 1000000;
+                System.out.println("Directory " + DIRECTORIES[i] + " - loaded [" + ROWS + "] rows in [" + loaded + "] ms - ran ["
+                        + ROUNDS * 4 + "] searches in [" + searched + "] ms");
+            }
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private void createTableAndIndex(String table, String directory) {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"directory\":" + directory + ",\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("CREATE TABLE " + table + "(part int, uid int, tags varchar, state varchar, magic text, PRIMARY KEY(part, uid))");
+        getSession().execute("CREATE CUSTOM INDEX " + table + "_magic ON " + table + "(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+}
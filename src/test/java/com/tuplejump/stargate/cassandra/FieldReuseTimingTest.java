@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.Constants;
+import com.tuplejump.stargate.Fields;
+import junit.framework.Assert;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times writing documents with the id and timestamp fields made for each document, as they were made before, and
+ * with the fields made once and given the values of each document, as RowIndexSupport makes them now, and prints
+ * the bytes allocated per document and the collections run by each.
+ */
+public class FieldReuseTimingTest {
+    static final int DOCS = 200000;
+
+    @Test
+    public void shouldTimeFreshAndReusedFields() throws Exception {
+        //warms up the writer before measuring either
+        time("Warm up", new FreshFields());
+        long fresh = time("Fields made per document", new FreshFields());
+        long reused = time("Fields reused across documents", new ReusedFields());
+        System.out.println("Reused fields allocated [" + (fresh == 0 ? 100 : reused * 100 / fresh) + "]% of the bytes of fields made per document");
+    }
+
+    private long time(String name, DocumentMaker maker) throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_48, new KeywordAnalyzer()));
+        try {
+            List<Field> doc = new ArrayList<>();
+            long collections = collections();
+            long allocated = allocatedBytes();
+            long before = System.nanoTime();
+            for (int i = 0; i < DOCS; i++) {
+                doc.clear();
+                String rowKey = "key" + (i / 10);
+                String pkName = rowKey + ":" + i;
+                maker.addTo(doc, rowKey, pkName, ByteBufferUtil.bytes(pkName), i);
+                writer.addDocument(doc);
+            }
+            long taken = (System.nanoTime() - before) / 1000000;
+            allocated = allocatedBytes() - allocated;
+            collections = collections() - collections;
+            writer.commit();
+            DirectoryReader reader = DirectoryReader.open(directory);
+            Assert.assertEquals(DOCS, reader.numDocs());
+            reader.close();
+            System.out.println(name + " - [" + DOCS + "] documents in [" + taken + "] ms - [" + allocated / DOCS
+                    + "] bytes allocated per document - [" + collections + "] collections");
+            return allocated;
+        } finally {
+            writer.close();
+            directory.close();
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    interface DocumentMaker {
+        void addTo(List<Field> doc, String rowKey, String pkName, ByteBuffer pk, long ts);
+    }
+
+    static class FreshFields implements DocumentMaker {
+        @Override
+        public void addTo(List<Field> doc, String rowKey, String pkName, ByteBuffer pk, long ts) {
+            doc.add(Fields.idDocValues(UTF8Type.instance, pk));
+            doc.add(Fields.pkNameDocValues(pkName));
+            doc.add(Fields.pkNameIndexed(pkName));
+            doc.add(Fields.rowKeyIndexed(rowKey));
+            doc.add(Fields.tsDocValues(ts));
+            doc.add(Fields.tsField(ts, LongField.TYPE_NOT_STORED));
+        }
+    }
+
+    static class ReusedFields implements DocumentMaker {
+        private final BytesRef id = new BytesRef();
+        private final BytesRef pkNameBytes = new BytesRef();
+        private final Field idDocValues = new SortedDocValuesField(Constants.PK_NAME_DOC_VAL, id);
+        private final Field pkNameDocValues = new SortedDocValuesField(Constants.PK_NAME_STORED, pkNameBytes);
+        private final Field pkNameIndexed = Fields.pkNameIndexed("");
+        private final Field rowKeyIndexed = Fields.rowKeyIndexed("");
+        private final Field tsDocValues = Fields.tsDocValues(0);
+        private final Field tsField = Fields.tsField(0, LongField.TYPE_NOT_STORED);
+
+        @Override
+        public void addTo(List<Field> doc, String rowKey, String pkName, ByteBuffer pk, long ts) {
+            id.bytes = pk.array();
+            id.offset = pk.arrayOffset() + pk.position();
+            id.length = pk.remaining();
+            pkNameBytes.copyChars(pkName);
+            pkNameIndexed.setStringValue(pkName);
+            rowKeyIndexed.setStringValue(rowKey);
+            tsDocValues.setLongValue(ts);
+            tsField.setLongValue(ts);
+            doc.add(idDocValues);
+            doc.add(pkNameDocValues);
+            doc.add(pkNameIndexed);
+            doc.add(rowKeyIndexed);
+            doc.add(tsDocValues);
+            doc.add(tsField);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.Constants;
+import com.tuplejump.stargate.Fields;
+import junit.framework.Assert;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Collects the top entries of several indexes on their own and merges them, as when each vnode is searched on its own,
+ * checking that the merge returns the same entries in the same order as sorting all the documents together.
+ */
+public class IndexEntryCollectorTest {
+    static final int SHARDS = 4;
+    static final int DOCS = 50;
+    static final int TOP = 20;
+
+    List<RAMDirectory> directories = new ArrayList<>();
+    List<DirectoryReader> readers = new ArrayList<>();
+    //the value and primary key of every document of every shard
+    List<Object[]> all = new ArrayList<>();
+
+    @Before
+    public void createShards() throws IOException {
+        Random random = new Random(42);
+        for (int shard = 0; shard < SHARDS; shard++) {
+            RAMDirectory directory = new RAMDirectory();
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_48, new WhitespaceAnalyzer(Version.LUCENE_48)));
+            for (int i = 0; i < DOCS; i++) {
+                //few values, so most entries tie on the sort
+                long value = random.nextInt(10);
+                String pkName = "key" + shard + ":" + i;
+                Document doc = new Document();
+                doc.add(Fields.pkNameDocValues(pkName));
+                doc.add(Fields.pkNameIndexed(pkName));
+                doc.add(new SortedDocValuesField(Constants.PK_NAME_DOC_VAL, new BytesRef(pkName)));
+                doc.add(Fields.tsDocValues(i));
+                doc.add(new NumericDocValuesField("value", value));
+                //a varying number of hellos, so the entries score differently
+                StringBuilder tags = new StringBuilder("hello");
+                for (int j = random.nextInt(5); j > 0; j--) tags.append(" hello");
+                doc.add(new TextField("tags", tags.toString() + " tag" + i, Field.Store.NO));
+                writer.addDocument(doc);
+                all.add(new Object[]{value, pkName});
+            }
+            writer.close();
+            directories.add(directory);
+            readers.add(DirectoryReader.open(directory));
+        }
+    }
+
+    @After
+    public void closeShards() throws IOException {
+        for (DirectoryReader reader : readers) reader.close();
+        for (RAMDirectory directory : directories) directory.close();
+    }
+
+    @Test
+    public void shouldMergeInSortOrder() throws IOException {
+        SortField[] sort = new SortField[]{new SortField("value", SortField.Type.LONG), new SortField(Constants.PK_NAME_STORED, SortField.Type.STRING)};
+        assertMergedLike(sort, false);
+    }
+
+    @Test
+    public void shouldMergeInReverseSortOrder() throws IOException {
+        SortField[] sort = new SortField[]{new SortField("value", SortField.Type.LONG, true), new SortField(Constants.PK_NAME_STORED, SortField.Type.STRING, true)};
+        assertMergedLike(sort, true);
+    }
+
+    @Test
+    public void shouldMergeByScore() throws IOException {
+        List<IndexEntryCollector> collectors = collect(null, new TermQuery(new Term("tags", "hello")));
+        List<IndexEntryCollector.IndexEntry> merged = IndexEntryCollector.merge(null, TOP, collectors);
+        Assert.assertEquals(TOP, merged.size());
+        for (int i = 1; i < merged.size(); i++) {
+            Assert.assertTrue("Entry " + i + " scores more than the one before it", merged.get(i).score <= merged.get(i - 1).score);
+        }
+    }
+
+    private void assertMergedLike(SortField[] sort, final boolean reverse) throws IOException {
+        List<IndexEntryCollector.IndexEntry> merged = IndexEntryCollector.merge(sort, TOP, collect(sort, new MatchAllDocsQuery()));
+        Collections.sort(all, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                int c = ((Long) a[0]).compareTo((Long) b[0]);
+                if (c == 0) c = ((String) a[1]).compareTo((String) b[1]);
+                return reverse ? -c : c;
+            }
+        });
+        Assert.assertEquals(TOP, merged.size());
+        for (int i = 0; i < TOP; i++) {
+            Assert.assertEquals(all.get(i)[1], merged.get(i).pkName);
+            Assert.assertEquals(all.get(i)[0], merged.get(i).sortValues[0]);
+        }
+    }
+
+    private List<IndexEntryCollector> collect(SortField[] sort, Query query) throws IOException {
+        List<IndexEntryCollector> collectors = new ArrayList<>();
+        for (DirectoryReader reader : readers) {
+            IndexEntryCollector collector = new IndexEntryCollector(sort, TOP);
+            new IndexSearcher(reader).search(query, collector);
+            collectors.add(collector);
+        }
+        return collectors;
+    }
+}
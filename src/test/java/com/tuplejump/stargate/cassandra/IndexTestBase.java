@@ -19,8 +19,13 @@ package com.tuplejump.stargate.cassandra;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.tuplejump.stargate.RowIndex;
 import com.tuplejump.stargate.lucene.Properties;
 import com.tuplejump.stargate.util.CQLUnitD;
+import org.apache.cassandra.db.DecoratedKey;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.marshal.Int32Type;
+import org.apache.cassandra.service.StorageService;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.document.Field;
@@ -115,6 +120,19 @@ public class IndexTestBase {
     }
 
 
+    /**
+     * @return the stargate index of the table, so a test can get at its indexers.
+     */
+    protected RowIndex getRowIndex(String ksName, String tName, String indexName) {
+        Keyspace ks = Keyspace.open(ksName.toLowerCase());
+        Set<String> names = Collections.singleton(indexName.toLowerCase());
+        return (RowIndex) ks.getColumnFamilyStore(tName.toLowerCase()).indexManager.getIndexesByNames(names).iterator().next();
+    }
+
+    protected DecoratedKey intKey(int key) {
+        return StorageService.getPartitioner().decorateKey(Int32Type.instance.decompose(key));
+    }
+
     protected Session getSession() {
         return cassandraCQLUnit.session();
     }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.cassandra.db.filter.QueryFilter;
+import org.apache.cassandra.db.marshal.CompositeType;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Looks up the stored columns of a table with a composite clustering key and a static column, checking that the
+ * indexed columns are found by their names in place and that the other columns are not.
+ */
+public class IndexedColumnsTest extends IndexTestBase {
+    String keyspace = "dummyksColumns";
+
+    public IndexedColumnsTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldFindIndexedColumnsOfCompositeAndStaticNames() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            getSession().execute("insert into " + keyspace + ".COLS (part,c1,c2,tags,other,state) values (0,1,'a','hello tag','x','CA')");
+            getSession().execute("insert into " + keyspace + ".COLS (part,c1,c2,tags,other) values (0,2,'tags','hello tag','y')");
+            RowIndexSupport support = getRowIndex(keyspace, "COLS", "cols_magic").getRowIndexSupport();
+
+            ColumnFamilyStore table = Keyspace.open(keyspace.toLowerCase()).getColumnFamilyStore("cols");
+            ColumnFamily cf = table.getColumnFamily(QueryFilter.getIdentityFilter(intKey(0), "cols", System.currentTimeMillis()));
+            Map<String, Integer> found = new HashMap<>();
+            int statics = 0;
+            for (Column column : cf) {
+                IndexedColumns.IndexedColumn indexed = support.indexedColumn(column.name());
+                if (CompositeType.isStaticName(column.name())) {
+                    statics++;
+                    Assert.assertNotNull(indexed);
+                    Assert.assertEquals("state", indexed.name);
+                    Assert.assertTrue(support.isColumn(column.name(), ByteBufferUtil.bytes("state")));
+                    Assert.assertFalse(support.isColumn(column.name(), ByteBufferUtil.bytes("tags")));
+                }
+                if (indexed != null) {
+                    Integer count = found.get(indexed.name);
+                    found.put(indexed.name, count == null ? 1 : count + 1);
+                }
+            }
+            Assert.assertEquals(1, statics);
+            //a clustering value equal to the name of an indexed column is not taken for it
+            Assert.assertEquals(Integer.valueOf(2), found.get("tags"));
+            Assert.assertEquals(Integer.valueOf(1), found.get("state"));
+            Assert.assertEquals(2, found.size());
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldFindIndexedColumnsByCqlName() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            IndexedColumns columns = getRowIndex(keyspace, "COLS", "cols_magic").getRowIndexSupport().indexedColumns;
+            Assert.assertEquals("tags", columns.get(ByteBufferUtil.bytes("tags")).name);
+            Assert.assertEquals("state", columns.get(ByteBufferUtil.bytes("state")).name);
+            Assert.assertNull(columns.get(ByteBufferUtil.bytes("other")));
+            Assert.assertNull(columns.get(ByteBufferUtil.bytes("tag")));
+            Assert.assertNull(columns.get(ByteBufferUtil.bytes("c2")));
+            //names are matched in place, away from the start of the buffer
+            ByteBuffer name = ByteBufferUtil.bytes("xxtags");
+            name.position(2);
+            Assert.assertEquals("tags", columns.get(name).name);
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE COLS(part int, c1 int, c2 varchar, tags varchar, other varchar, state varchar static, magic text, PRIMARY KEY(part, c1, c2))");
+        getSession().execute("CREATE CUSTOM INDEX cols_magic ON COLS(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pages through the results of searches with cursors, sorted by a field with many ties and by relevance,
+ * over one reader for all vnodes and over each vnode on its own.
+ */
+public class PagingTest extends IndexTestBase {
+    String keyspace = "dummyksPaging";
+    static final Pattern CURSOR = Pattern.compile("\"cursor\":\"([0-9a-fA-F]+)\"");
+    static final int ROWS = 47;
+    static final int PAGE = 10;
+
+    public PagingTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldPageWithoutRepeatsOrGaps() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex("PAGED", false);
+            createTableAndIndex("PAGED_PARALLEL", true);
+            for (String table : new String[]{"PAGED", "PAGED_PARALLEL"}) {
+                Assert.assertEquals(ROWS, countResults(table, "part=0 AND magic = '" + q("state", "*:*") + "'", false));
+                pageAll(table, "{ query:{ type:\"lucene\", field:\"tags\", value:\"hello*\" }, sort:{fields:[{field:\"state\"}]}, paging:true");
+                pageAll(table, "{ query:{ type:\"lucene\", field:\"tags\", value:\"hello*\" }, paging:true");
+            }
+            //each vnode searched on its own still finds every row of the ring
+            Assert.assertEquals(ROWS * 3, countResults("PAGED_PARALLEL", "magic = '" + q("state", "*:*") + "'", false));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private void pageAll(String table, String search) {
+        Set<Integer> seen = new HashSet<>();
+        String after = null;
+        int pages = 0;
+        while (true) {
+            String json = search + (after == null ? "" : ", after:\"" + after + "\"") + "}";
+            ResultSet rows = getSession().execute("SELECT * FROM " + keyspace + "." + table + " WHERE part=0 AND magic = '" + json + "' LIMIT " + PAGE);
+            int count = 0;
+            String last = null;
+            for (Row row : rows) {
+                Assert.assertTrue("Row repeated on page " + pages + " - " + row, seen.add(row.getInt("uid")));
+                Matcher matcher = CURSOR.matcher(row.getString("magic"));
+                Assert.assertTrue("No cursor in " + row, matcher.find());
+                last = matcher.group(1);
+                count++;
+            }
+            if (count == 0) break;
+            pages++;
+            Assert.assertTrue(pages <= ROWS / PAGE + 1);
+            after = last;
+        }
+        Assert.assertEquals(ROWS / PAGE + 1, pages);
+        Assert.assertEquals(ROWS, seen.size());
+    }
+
+    private void createTableAndIndex(String table, boolean parallel) {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                (parallel ? "\t\"search\":{\"parallel\":true},\n" : "") +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE " + table + "(part int, uid int, tags varchar, state varchar, magic text, PRIMARY KEY(part, uid))");
+        getSession().execute("CREATE CUSTOM INDEX " + table + "_magic ON " + table + "(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int part = 0; part < 3; part++) {
+            for (int uid = 0; uid < ROWS; uid++) {
+                //few states, so that most rows tie on the sort
+                getSession().execute("insert into " + keyspace + "." + table + " (part,uid,tags,state) values (" + part + "," + uid + ",'hello" + (uid % 2) + " tag" + uid + "', '" + states[uid % 4] + "')");
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Builds an index over partitions wider than a rebuild batch, so that the CQL rows cut by the end of a batch
+ * are each indexed once and whole.
+ */
+public class RebuildWidePartitionTest extends IndexTestBase {
+    String keyspace = "dummyksWide";
+
+    public RebuildWidePartitionTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldIndexEveryRowOfWidePartitions() throws Exception {
+        createKS(keyspace);
+        try {
+            getSession().execute("USE " + keyspace + ";");
+            getSession().execute("CREATE TABLE WIDE(part int, uid int, tags varchar, state varchar, magic text, PRIMARY KEY(part, uid))");
+            for (int part = 0; part < 3; part++) {
+                //each CQL row has a marker and two columns, so batches end part way through rows
+                for (int uid = 0; uid < 1200; uid++) {
+                    getSession().execute("insert into " + keyspace + ".WIDE (part,uid,tags,state) values (" + part + "," + uid + ",'hello tag" + uid + "','" + states[uid % 4] + "')");
+                }
+            }
+            String options = "{\n" +
+                    "\t\"metaColumn\":true,\n" +
+                    "\t\"fields\":{\n" +
+                    "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                    "\t\t\"state\":{}\n" +
+                    "\t}\n" +
+                    "}\n";
+            getSession().execute("CREATE CUSTOM INDEX wide_magic ON WIDE(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+            Thread.sleep(5000);
+            Assert.assertEquals(1200, countResults("WIDE", "part=1 AND magic = '" + q("tags", "hello") + "' LIMIT 5000", false));
+            Assert.assertEquals(300, countResults("WIDE", "part=2 AND magic = '" + q("state", "CA") + "' LIMIT 5000", false));
+            Assert.assertEquals(3600, countResults("WIDE", "magic = '" + q("tags", "hello") + "' LIMIT 5000", false));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.SearchPool;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Shares a named search pool between two indexes, checking that the pool keeps the size of the index which made it
+ * and that it is removed once both indexes are dropped.
+ */
+public class SearchPoolTest extends IndexTestBase {
+    String keyspace = "dummyksPool";
+
+    public SearchPoolTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldShareAndRemoveNamedPool() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex("POOL_A", 2);
+            createTableAndIndex("POOL_B", 5);
+            SearchPool pool = SearchPool.find("shared");
+            Assert.assertNotNull(pool);
+            Assert.assertEquals(2, pool.getThreads());
+            Assert.assertEquals(10, countResults("POOL_A", "magic = '" + q("tags", "hello") + "'", false));
+            Assert.assertEquals(10, countResults("POOL_B", "magic = '" + q("tags", "hello") + "'", false));
+
+            getSession().execute("DROP INDEX POOL_A_magic");
+            Assert.assertSame(pool, SearchPool.find("shared"));
+            Assert.assertEquals(10, countResults("POOL_B", "magic = '" + q("tags", "hello") + "'", false));
+
+            getSession().execute("DROP INDEX POOL_B_magic");
+            Assert.assertNull(SearchPool.find("shared"));
+            Assert.assertTrue(pool.executor().isShutdown());
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private void createTableAndIndex(String table, int threads) {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"search\":{\"pool\":\"shared\", \"threads\":" + threads + "},\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE " + table + "(key int, tags varchar, state varchar, magic text, PRIMARY KEY(key))");
+        getSession().execute("CREATE CUSTOM INDEX " + table + "_magic ON " + table + "(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+        for (int i = 0; i < 10; i++) {
+            getSession().execute("insert into " + keyspace + "." + table + " (key,tags,state) values (" + i + ",'hello tag" + i + "','" + states[i % 4] + "')");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.cassandra;
+
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Updates and deletes rows of an index written with upserts, which does not check for stale documents on reads,
+ * checking that partial updates and deletes of CQL rows and partitions leave no stale documents behind, also when
+ * a row is updated on many threads at once.
+ */
+public class UpsertTest extends IndexTestBase {
+    String keyspace = "dummyksUpsert";
+
+    public UpsertTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldLeaveNoStaleDocuments() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            for (int part = 0; part < 3; part++) {
+                for (int uid = 0; uid < 10; uid++) {
+                    getSession().execute("insert into " + keyspace + ".UPSERTS (part,uid,tags,state) values (" + part + "," + uid + ",'hello tag" + uid + "','CA')");
+                }
+            }
+            Assert.assertEquals(30, countResults("UPSERTS", "magic = '" + q("state", "CA") + "'", false));
+
+            //a partial update keeps the other columns of the row
+            getSession().execute("update " + keyspace + ".UPSERTS set state = 'NY' where part = 0 and uid = 1");
+            Assert.assertEquals(29, countResults("UPSERTS", "magic = '" + q("state", "CA") + "'", false));
+            Assert.assertEquals(1, countResults("UPSERTS", "magic = '" + q("state", "NY") + "'", false));
+            Assert.assertEquals(30, countResults("UPSERTS", "magic = '" + q("tags", "hello") + "'", false));
+
+            //a CQL row delete writes no columns
+            getSession().execute("delete from " + keyspace + ".UPSERTS where part = 0 and uid = 1");
+            getSession().execute("delete from " + keyspace + ".UPSERTS where part = 0 and uid = 2");
+            Assert.assertEquals(0, countResults("UPSERTS", "magic = '" + q("state", "NY") + "'", false));
+            Assert.assertEquals(28, countResults("UPSERTS", "magic = '" + q("tags", "hello") + "'", false));
+
+            //a partition delete removes all its rows
+            getSession().execute("delete from " + keyspace + ".UPSERTS where part = 1");
+            Assert.assertEquals(18, countResults("UPSERTS", "magic = '" + q("tags", "hello") + "'", false));
+
+            //rows written again after their delete are found again
+            getSession().execute("insert into " + keyspace + ".UPSERTS (part,uid,tags,state) values (0,1,'hello tag1','TX')");
+            Assert.assertEquals(1, countResults("UPSERTS", "magic = '" + q("state", "TX") + "'", false));
+            Assert.assertEquals(19, countResults("UPSERTS", "magic = '" + q("tags", "hello") + "'", false));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldKeepConcurrentUpdatesOfRow() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            for (int uid = 0; uid < 50; uid++) {
+                getSession().execute("insert into " + keyspace + ".UPSERTS (part,uid,tags,state) values (0," + uid + ",'hello tag" + uid + "','CA')");
+            }
+            //each row is updated on two threads at once, each reading the row and replacing its document
+            Thread states = update("state = 'NY'");
+            Thread tags = update("tags = 'hello world'");
+            states.start();
+            tags.start();
+            states.join();
+            tags.join();
+            Assert.assertEquals(50, countResults("UPSERTS", "magic = '" + q("tags", "tags:world AND state:NY") + "'", false));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private Thread update(final String set) {
+        return new Thread() {
+            @Override
+            public void run() {
+                for (int uid = 0; uid < 50; uid++) {
+                    getSession().execute("update " + keyspace + ".UPSERTS set " + set + " where part = 0 and uid = " + uid);
+                }
+            }
+        };
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"indexing\":{\"upsert\":true},\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE UPSERTS(part int, uid int, tags varchar, state varchar, magic text, PRIMARY KEY(part, uid))");
+        getSession().execute("CREATE CUSTOM INDEX upserts_magic ON UPSERTS(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+}
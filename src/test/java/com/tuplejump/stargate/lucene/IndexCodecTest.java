@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.Constants;
+import com.tuplejump.stargate.Fields;
+import junit.framework.Assert;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * Writes segments with the codec of the indexing options and reads them back with the default codec, checking that
+ * the bloom filtered postings format is written for the id fields only, unless the options set another one.
+ */
+public class IndexCodecTest {
+
+    @Test
+    public void shouldWriteIdFieldsOnlyWithBloomFilter() throws IOException {
+        FieldInfos fieldInfos = write(indexingOptions("{}"));
+        Assert.assertEquals(IndexCodec.BLOOM_FILTER, postingsFormat(fieldInfos, Constants.PK_NAME_STORED));
+        Assert.assertEquals(IndexCodec.BLOOM_FILTER, postingsFormat(fieldInfos, Constants.RK_NAME_INDEXED));
+        Assert.assertEquals("Lucene41", postingsFormat(fieldInfos, "tags"));
+    }
+
+    @Test
+    public void shouldWriteFieldsWithFormatOfOptions() throws IOException {
+        FieldInfos fieldInfos = write(indexingOptions("{\"postingsFormats\":{\"_row_key_\":\"Lucene41\", \"tags\":\"BloomFilter\"}}"));
+        Assert.assertEquals(IndexCodec.BLOOM_FILTER, postingsFormat(fieldInfos, Constants.PK_NAME_STORED));
+        Assert.assertEquals("Lucene41", postingsFormat(fieldInfos, Constants.RK_NAME_INDEXED));
+        Assert.assertEquals(IndexCodec.BLOOM_FILTER, postingsFormat(fieldInfos, "tags"));
+    }
+
+    private static IndexingOptions indexingOptions(String json) throws IOException {
+        return new ObjectMapper().readValue(json, IndexingOptions.class);
+    }
+
+    private static FieldInfos write(IndexingOptions indexingOptions) throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, new WhitespaceAnalyzer(Version.LUCENE_48));
+        config.setCodec(new IndexCodec(indexingOptions.getPostingsFormats()));
+        IndexWriter writer = new IndexWriter(directory, config);
+        for (int i = 0; i < 10; i++) {
+            Document doc = new Document();
+            doc.add(Fields.pkNameIndexed("key" + i + ":" + i));
+            doc.add(Fields.rowKeyIndexed("key" + i));
+            doc.add(Fields.textField("tags", "hello tag" + i));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            //the keys can be looked up with the codecs found by name
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Assert.assertEquals(1, searcher.search(new TermQuery(Fields.idTerm("key3:3")), 10).totalHits);
+            Assert.assertEquals(0, searcher.search(new TermQuery(Fields.idTerm("key3:4")), 10).totalHits);
+            Assert.assertEquals(1, searcher.search(new TermQuery(Fields.rkTerm("key7")), 10).totalHits);
+            Assert.assertEquals(1, reader.leaves().size());
+            AtomicReader segment = reader.leaves().get(0).reader();
+            return segment.getFieldInfos();
+        } finally {
+            reader.close();
+            directory.close();
+        }
+    }
+
+    private static String postingsFormat(FieldInfos fieldInfos, String field) {
+        return fieldInfos.fieldInfo(field).getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.RowIndex;
+import com.tuplejump.stargate.cassandra.IndexTestBase;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Writes to and searches an index made with lazyOpen, checking that the indexer of a range is opened by its
+ * first write or search and not before.
+ */
+public class LazyIndexerTest extends IndexTestBase {
+    String keyspace = "dummyksLazy";
+
+    public LazyIndexerTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldOpenIndexersOnFirstUse() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            RowIndex rowIndex = getRowIndex(keyspace, "LAZY", "lazy_magic");
+            LazyIndexer written = (LazyIndexer) rowIndex.indexer(intKey(0));
+            LazyIndexer searched = null;
+            for (int part = 1; searched == null && part < 1000; part++) {
+                if (rowIndex.indexer(intKey(part)) != written) searched = (LazyIndexer) rowIndex.indexer(intKey(part));
+            }
+            Assert.assertNotNull(searched);
+            Assert.assertFalse(written.isOpen());
+            Assert.assertFalse(written.retainsDocuments());
+            Assert.assertFalse(written.isOpen());
+            Assert.assertFalse(searched.isOpen());
+
+            getSession().execute("insert into " + keyspace + ".LAZY (part,uid,state) values (0,1,'CA')");
+            Assert.assertTrue(written.isOpen());
+            Assert.assertFalse(searched.isOpen());
+
+            //a search of the whole ring reads every indexer
+            Assert.assertEquals(1, countResults("LAZY", "magic = '" + q("state", "CA") + "'", false));
+            Assert.assertTrue(searched.isOpen());
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"indexing\":{\"lazyOpen\":true},\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE LAZY(part int, uid int, state varchar, magic text, PRIMARY KEY(part, uid))");
+        getSession().execute("CREATE CUSTOM INDEX lazy_magic ON LAZY(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.Fields;
+import com.tuplejump.stargate.cassandra.IndexTestBase;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Writes documents straight to the indexer of a partition, checking the order in which its writes are applied.
+ */
+public class NearRealTimeIndexerTest extends IndexTestBase {
+    String keyspace = "dummyksNRT";
+
+    public NearRealTimeIndexerTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldNotDeleteDocumentsAddedAfterTheDelete() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            Indexer indexer = getRowIndex(keyspace, "NRT", "nrt_magic").indexer(intKey(0));
+            //id and timestamp deletes are batched till the next refresh, which must not apply them to later adds
+            indexer.delete(Fields.idTerm("a"), Fields.tsTerm(5));
+            indexer.insert(doc("a", 5));
+            indexer.delete(Fields.idTerm("b"), Fields.tsTerm(5));
+            indexer.insertAll(Arrays.asList(doc("b", 5)));
+            indexer.delete(Fields.idTerm("c"), Fields.tsTerm(5));
+            indexer.upsert(doc("c", 5), Fields.idTerm("c"));
+            //and still apply to the adds made before them
+            indexer.insert(doc("d", 5));
+            indexer.delete(Fields.idTerm("d"), Fields.tsTerm(5));
+            Assert.assertEquals(1, count(indexer, "a"));
+            Assert.assertEquals(1, count(indexer, "b"));
+            Assert.assertEquals(1, count(indexer, "c"));
+            Assert.assertEquals(0, count(indexer, "d"));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private static Iterable<Field> doc(String pkName, long ts) {
+        return Arrays.asList(Fields.pkNameIndexed(pkName), Fields.tsField(ts, LongField.TYPE_NOT_STORED), Fields.tsDocValues(ts));
+    }
+
+    private static int count(Indexer indexer, String pkName) throws Exception {
+        IndexSearcher searcher = indexer.acquire(0);
+        try {
+            return searcher.search(new TermQuery(Fields.idTerm(pkName)), 10).totalHits;
+        } finally {
+            indexer.release(searcher);
+        }
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE NRT(part int, uid int, tags varchar, magic text, PRIMARY KEY(part, uid))");
+        getSession().execute("CREATE CUSTOM INDEX nrt_magic ON NRT(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+}
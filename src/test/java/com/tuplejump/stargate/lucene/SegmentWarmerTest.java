@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.RowIndex;
+import com.tuplejump.stargate.cassandra.IndexTestBase;
+import com.tuplejump.stargate.lucene.query.FilterCache;
+import com.tuplejump.stargate.lucene.query.Search;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.apache.cassandra.db.Keyspace;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes segments through a writer and searcher manager set up with a warmer, the way the NRT indexer sets them
+ * up, checking that every new segment is warmed before a search is given the reopened searcher. Writes rows to an
+ * index with a warming query, checking that the filter of the warming query is already cached for the new segments.
+ */
+public class SegmentWarmerTest extends IndexTestBase {
+    String keyspace = "dummyksWarm";
+    static final String WARMING_QUERY = "{\"filter\":{\"type\":\"match\",\"field\":\"state\",\"value\":\"CA\"}}";
+
+    public SegmentWarmerTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldWarmNewSegmentsBeforeTheyAreSearched() throws Exception {
+        createKS(keyspace);
+        try {
+            getSession().execute("USE " + keyspace + ";");
+            getSession().execute("CREATE TABLE WARM(part int, uid int, state varchar, magic text, PRIMARY KEY(part, uid))");
+            String options = "{\"warming\":{\"queries\":[" + WARMING_QUERY + "]}, \"fields\":{\"state\":{}}}";
+            Options warmOptions = Options.getOptions("magic", Keyspace.open(keyspace.toLowerCase()).getColumnFamilyStore("warm"), options);
+            RecordingWarmer warmer = new RecordingWarmer(warmOptions);
+            Query query = Options.jsonMapper.readValue(WARMING_QUERY, Search.class).query(warmOptions);
+
+            RAMDirectory directory = new RAMDirectory();
+            IndexWriterConfig config = new IndexWriterConfig(Properties.luceneVersion, warmOptions.analyzer);
+            config.setMergedSegmentWarmer(warmer);
+            IndexWriter writer = new IndexWriter(directory, config);
+            SearcherManager searcherManager = new SearcherManager(writer, true, warmer.searcherFactory());
+            try {
+                for (int round = 0; round < 3; round++) {
+                    for (int uid = 0; uid < 10; uid++) {
+                        Document doc = new Document();
+                        doc.add(new Field("state", uid % 2 == 0 ? "CA" : "NY", warmOptions.fieldTypes.get("state")));
+                        writer.addDocument(doc);
+                    }
+                    //reopens with the new segment
+                    searcherManager.maybeRefreshBlocking();
+                    IndexSearcher searcher = searcherManager.acquire();
+                    try {
+                        Assert.assertEquals(round + 1, searcher.getIndexReader().leaves().size());
+                        for (AtomicReaderContext leaf : searcher.getIndexReader().leaves()) {
+                            Assert.assertTrue(warmer.warmed.contains(leaf.reader().getCoreCacheKey()));
+                        }
+                        Assert.assertEquals(round + 1, warmer.warmed.size());
+                        Assert.assertEquals((round + 1) * 5, searcher.search(query, 100).totalHits);
+                    } finally {
+                        searcherManager.release(searcher);
+                    }
+                }
+            } finally {
+                searcherManager.close();
+                writer.close();
+                directory.close();
+            }
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldFillTheFilterCacheWhenWarming() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            RowIndex rowIndex = getRowIndex(keyspace, "WARM", "warm_magic");
+            FilterCache filterCache = rowIndex.getQueryPlans().getFilterCache();
+            Query query = rowIndex.getQueryPlans().get(WARMING_QUERY).query;
+            Indexer indexer = rowIndex.indexer(intKey(0));
+            for (int round = 0; round < 3; round++) {
+                for (int uid = 0; uid < 10; uid++) {
+                    String state = uid % 2 == 0 ? "CA" : "NY";
+                    getSession().execute("insert into " + keyspace + ".WARM (part,uid,state) values (0," + (round * 10 + uid) + ",'" + state + "')");
+                }
+                //reopens with the new segment
+                IndexSearcher searcher = indexer.acquire(0);
+                try {
+                    int segments = searcher.getIndexReader().leaves().size();
+                    long cached = filterCache.size();
+                    Assert.assertTrue(segments > 0);
+                    Assert.assertTrue("Cached " + cached + " for " + segments + " segments", cached >= segments);
+                    //every segment searched finds the matches of the filter already cached by the warmer
+                    Assert.assertEquals((round + 1) * 5, searcher.search(query, 100).totalHits);
+                    Assert.assertEquals(cached, filterCache.size());
+                } finally {
+                    indexer.release(searcher);
+                }
+            }
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"warming\":{\"queries\":[" + WARMING_QUERY + "]},\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE WARM(part int, uid int, state varchar, magic text, PRIMARY KEY(part, uid))");
+        getSession().execute("CREATE CUSTOM INDEX warm_magic ON WARM(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+
+    /**
+     * Records the cores of the segments it has warmed.
+     */
+    static class RecordingWarmer extends SegmentWarmer {
+        final Set<Object> warmed = Collections.synchronizedSet(new HashSet<>());
+
+        RecordingWarmer(Options options) {
+            super(options, "SegmentWarmerTest");
+        }
+
+        @Override
+        public void warm(AtomicReader reader) throws IOException {
+            super.warm(reader);
+            warmed.add(reader.getCoreCacheKey());
+        }
+    }
+}
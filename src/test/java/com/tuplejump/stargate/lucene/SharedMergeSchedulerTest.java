@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import junit.framework.Assert;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+
+/**
+ * Parses the merge options of an index and writes through a throttled directory, checking that merges are
+ * written at the rate of the throttle while other writes are not throttled.
+ */
+public class SharedMergeSchedulerTest {
+    static final int MB = 1024 * 1024;
+
+    @Test
+    public void shouldParseMergeOptions() throws IOException {
+        Properties properties = new ObjectMapper().readValue("{\"merge\":{\"maxMergedSegmentMB\":512, \"segmentsPerTier\":5, \"maxMergeAtOnce\":7}}", Properties.class);
+        TieredMergePolicy policy = properties.getMerge().mergePolicy();
+        Assert.assertEquals(512.0, policy.getMaxMergedSegmentMB());
+        Assert.assertEquals(5.0, policy.getSegmentsPerTier());
+        Assert.assertEquals(7, policy.getMaxMergeAtOnce());
+        //the settings left out keep the lucene defaults
+        TieredMergePolicy defaults = new TieredMergePolicy();
+        Assert.assertEquals(defaults.getFloorSegmentMB(), policy.getFloorSegmentMB());
+        Assert.assertEquals(defaults.getMaxMergeAtOnceExplicit(), policy.getMaxMergeAtOnceExplicit());
+
+        TieredMergePolicy unset = new ObjectMapper().readValue("{}", Properties.class).getMerge().mergePolicy();
+        Assert.assertEquals(defaults.getMaxMergedSegmentMB(), unset.getMaxMergedSegmentMB());
+        Assert.assertEquals(defaults.getSegmentsPerTier(), unset.getSegmentsPerTier());
+    }
+
+    @Test
+    public void shouldPauseEvery5msOfBytes() {
+        SharedMergeScheduler.Throttle throttle = new SharedMergeScheduler.Throttle(10);
+        Assert.assertEquals(10 * MB / 200, throttle.getMinPauseCheckBytes());
+        throttle.setMbPerSec(20);
+        Assert.assertEquals(20.0, throttle.getMbPerSec());
+        Assert.assertEquals(20 * MB / 200, throttle.getMinPauseCheckBytes());
+        throttle.setMbPerSec(0);
+        Assert.assertEquals(0, throttle.pause(MB));
+    }
+
+    @Test
+    public void shouldThrottleMergesOnly() throws IOException {
+        SharedMergeScheduler.Throttle throttle = new SharedMergeScheduler.Throttle(10);
+        RateLimitedDirectoryWrapper directory = new RateLimitedDirectoryWrapper(new RAMDirectory());
+        directory.setRateLimiter(throttle, IOContext.Context.MERGE);
+        try {
+            //3 MB at 10 MB/s, less the first burst
+            long merged = write(directory, "merged", new IOContext(new MergeInfo(1000, 3 * MB, false, 1)), 3 * MB);
+            Assert.assertTrue("Merge took " + merged + " ms", merged >= 200);
+            long flushed = write(directory, "flushed", IOContext.DEFAULT, 3 * MB);
+            Assert.assertTrue("Flush took " + flushed + " ms", flushed < 200);
+        } finally {
+            directory.close();
+        }
+    }
+
+    private static long write(RateLimitedDirectoryWrapper directory, String name, IOContext context, int bytes) throws IOException {
+        byte[] chunk = new byte[8192];
+        long started = System.currentTimeMillis();
+        IndexOutput output = directory.createOutput(name, context);
+        try {
+            for (int written = 0; written < bytes; written += chunk.length) {
+                output.writeBytes(chunk, chunk.length);
+            }
+        } finally {
+            output.close();
+        }
+        return System.currentTimeMillis() - started;
+    }
+}
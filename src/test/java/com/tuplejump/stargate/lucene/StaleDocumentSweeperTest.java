@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene;
+
+import com.tuplejump.stargate.cassandra.IndexTestBase;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.apache.lucene.search.IndexSearcher;
+import org.junit.Test;
+
+/**
+ * Overwrites rows of one partition, which leaves a document per write in its indexer, and sweeps the indexers,
+ * checking that only the latest document of each row is left and that the swept documents are counted.
+ */
+public class StaleDocumentSweeperTest extends IndexTestBase {
+    String keyspace = "dummyksSweep";
+
+    public StaleDocumentSweeperTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldSweepOverwrittenRows() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            for (int uid = 0; uid < 10; uid++) {
+                getSession().execute("insert into " + keyspace + ".SWEEP (part,uid,tags,state) values (0," + uid + ",'hello tag" + uid + "','CA')");
+            }
+            for (int uid = 0; uid < 3; uid++) {
+                getSession().execute("update " + keyspace + ".SWEEP set state = 'NY' where part = 0 and uid = " + uid);
+                getSession().execute("update " + keyspace + ".SWEEP set state = 'TX' where part = 0 and uid = " + uid);
+            }
+            //every row of the partition is in the same indexer
+            Indexer indexer = getRowIndex(keyspace, "SWEEP", "sweep_magic").indexer(intKey(0));
+            Assert.assertEquals(16, liveDocs(indexer, 0));
+
+            long reclaimed = StaleDocumentSweeper.instance.getDocumentsReclaimed();
+            StaleDocumentSweeper.instance.sweepAll();
+            Assert.assertEquals(reclaimed + 6, StaleDocumentSweeper.instance.getDocumentsReclaimed());
+            //the deletes are made searchable by the next refresh
+            long deadline = System.currentTimeMillis() + 10000;
+            while (liveDocs(indexer, Long.MAX_VALUE) != 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(10, liveDocs(indexer, Long.MAX_VALUE));
+            Assert.assertEquals(3, countResults("SWEEP", "magic = '" + q("state", "TX") + "'", false));
+            Assert.assertEquals(7, countResults("SWEEP", "magic = '" + q("state", "CA") + "'", false));
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private static int liveDocs(Indexer indexer, long maxStalenessMs) {
+        IndexSearcher searcher = indexer.acquire(maxStalenessMs);
+        try {
+            return searcher.getIndexReader().numDocs();
+        } finally {
+            indexer.release(searcher);
+        }
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"tags\":{\"type\":\"text\"},\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE SWEEP(part int, uid int, tags varchar, state varchar, magic text, PRIMARY KEY(part, uid))");
+        getSession().execute("CREATE CUSTOM INDEX sweep_magic ON SWEEP(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene.query;
+
+import junit.framework.Assert;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Searches segments with cached filters, checking that cached matches give the same documents as the filter,
+ * deletes included, and that the matches of a segment are dropped once its core is closed.
+ */
+public class FilterCacheTest {
+
+    @Test
+    public void shouldMatchSameDocumentsWhenCached() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = writer(directory, NoMergePolicy.COMPOUND_FILES);
+        FilterCache cache = new FilterCache(10, "FilterCacheTest.same");
+        try {
+            writeSegments(writer);
+            //deleted documents are left out of the cached matches too
+            writer.deleteDocuments(new Term("id", "3"));
+            writer.commit();
+            DirectoryReader reader = DirectoryReader.open(directory);
+            Assert.assertEquals(2, reader.leaves().size());
+            for (String tag : new String[]{"hot", "cold", "none"}) {
+                Filter filter = new QueryWrapperFilter(new TermQuery(new Term("tag", tag)));
+                Set<Integer> uncached = search(reader, filter);
+                Set<Integer> missed = search(reader, cache.cached(filter));
+                long size = cache.size();
+                Set<Integer> hit = search(reader, cache.cached(filter));
+                Assert.assertEquals(size, cache.size());
+                Assert.assertEquals(uncached, missed);
+                Assert.assertEquals(uncached, hit);
+            }
+            Assert.assertEquals(6, cache.size());
+            Assert.assertEquals(0, search(reader, cache.cached(new QueryWrapperFilter(new TermQuery(new Term("tag", "none"))))).size());
+
+            writer.deleteDocuments(new Term("id", "4"));
+            writer.deleteDocuments(new Term("id", "150"));
+            writer.commit();
+            DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+            reader.close();
+            Filter hot = new QueryWrapperFilter(new TermQuery(new Term("tag", "hot")));
+            Set<Integer> uncached = search(reopened, hot);
+            Assert.assertEquals(uncached, search(reopened, cache.cached(hot)));
+            Assert.assertEquals(98, uncached.size());
+            //the cores are the same, so the matches cached before the deletes are used
+            Assert.assertEquals(6, cache.size());
+            reopened.close();
+        } finally {
+            writer.close();
+            cache.close();
+            directory.close();
+        }
+    }
+
+    @Test
+    public void shouldPurgeEntriesOfClosedCores() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = writer(directory, new TieredMergePolicy());
+        FilterCache cache = new FilterCache(10, "FilterCacheTest.purge");
+        try {
+            writeSegments(writer);
+            DirectoryReader reader = DirectoryReader.open(directory);
+            Filter hot = cache.cached(new QueryWrapperFilter(new TermQuery(new Term("tag", "hot"))));
+            Assert.assertEquals(100, search(reader, hot).size());
+            Assert.assertEquals(2, cache.size());
+
+            writer.forceMerge(1);
+            writer.commit();
+            DirectoryReader merged = DirectoryReader.openIfChanged(reader);
+            Assert.assertEquals(1, merged.leaves().size());
+            Assert.assertEquals(100, search(merged, hot).size());
+            Assert.assertEquals(3, cache.size());
+            //the segments merged away are closed along with the last reader of them
+            reader.close();
+            Assert.assertEquals(1, cache.size());
+            merged.close();
+            Assert.assertEquals(0, cache.size());
+        } finally {
+            writer.close();
+            cache.close();
+            directory.close();
+        }
+    }
+
+    private static IndexWriter writer(RAMDirectory directory, MergePolicy mergePolicy) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, new KeywordAnalyzer());
+        config.setMergePolicy(mergePolicy);
+        return new IndexWriter(directory, config);
+    }
+
+    /**
+     * Writes 2 segments of 100 documents each, half of them tagged hot.
+     */
+    private static void writeSegments(IndexWriter writer) throws IOException {
+        for (int i = 0; i < 200; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("id", String.valueOf(i), Field.Store.NO));
+            doc.add(new StringField("tag", i % 2 == 0 ? "hot" : "cold", Field.Store.NO));
+            writer.addDocument(doc);
+            if (i == 99) writer.commit();
+        }
+        writer.commit();
+    }
+
+    private static Set<Integer> search(DirectoryReader reader, Filter filter) throws IOException {
+        Set<Integer> docs = new HashSet<>();
+        for (ScoreDoc scoreDoc : new IndexSearcher(reader).search(new ConstantScoreQuery(filter), 1000).scoreDocs) {
+            docs.add(scoreDoc.doc);
+        }
+        return docs;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014, Tuplejump Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tuplejump.stargate.lucene.query;
+
+import com.tuplejump.stargate.cassandra.IndexTestBase;
+import com.tuplejump.stargate.util.CQLUnitD;
+import junit.framework.Assert;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+/**
+ * Searches an index with the same searches again, checking that their plans are made once, that the pages of a
+ * paged search share the plan of the search whatever their cursor and that searches which do not parse are not cached.
+ */
+public class QueryPlanCacheTest extends IndexTestBase {
+    String keyspace = "dummyksPlans";
+
+    public QueryPlanCacheTest() {
+        cassandraCQLUnit = CQLUnitD.getCQLUnit(null);
+    }
+
+    @Test
+    public void shouldReusePlansOfRepeatedSearches() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            for (int uid = 0; uid < 10; uid++) {
+                getSession().execute("insert into " + keyspace + ".PLANS (part,uid,state) values (0," + uid + ",'" + (uid % 2 == 0 ? "CA" : "NY") + "')");
+            }
+            QueryPlanCache plans = getRowIndex(keyspace, "PLANS", "plans_magic").getQueryPlans();
+            long size = plans.size();
+            String search = q("state", "CA");
+            QueryPlanCache.Plan plan = plans.get(search);
+            Assert.assertSame(plan, plans.get(search));
+            Assert.assertEquals(size + 1, plans.size());
+            //searches run through the index use the cached plan
+            Assert.assertEquals(5, countResults("PLANS", "magic = '" + search + "'", false));
+            Assert.assertEquals(5, countResults("PLANS", "magic = '" + search + "'", false));
+            Assert.assertEquals(size + 1, plans.size());
+            Assert.assertEquals(5, countResults("PLANS", "magic = '" + q("state", "NY") + "'", false));
+            Assert.assertEquals(size + 2, plans.size());
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldNotCacheSearchesWhichDoNotParse() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            QueryPlanCache plans = getRowIndex(keyspace, "PLANS", "plans_magic").getQueryPlans();
+            long size = plans.size();
+            try {
+                plans.get("{ query:{ type:\"none\" }}");
+                Assert.fail();
+            } catch (Exception e) {
+                Assert.assertEquals(size, plans.size());
+            }
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    @Test
+    public void shouldShareThePlanOfPagesWithDifferentCursors() throws Exception {
+        createKS(keyspace);
+        try {
+            createTableAndIndex();
+            QueryPlanCache plans = getRowIndex(keyspace, "PLANS", "plans_magic").getQueryPlans();
+            long size = plans.size();
+            String search = "{ query:{ type:\"lucene\", field:\"state\", value:\"CA\" }, paging:true";
+            String first = Cursor.encode(new Object[]{1.5f, new BytesRef("a")});
+            String second = Cursor.encode(new Object[]{0.5f, new BytesRef("b")});
+            QueryPlanCache.Plan page = plans.get(search + ", after:\"" + first + "\"}");
+            QueryPlanCache.Plan next = plans.get(search + ", after:\"" + second + "\"}");
+            Assert.assertSame(page.query, next.query);
+            Assert.assertSame(page.search, next.search);
+            Assert.assertEquals(size + 1, plans.size());
+            Assert.assertEquals(1.5f, page.after[0]);
+            Assert.assertEquals(new BytesRef("b"), next.after[1]);
+        } finally {
+            dropKS(keyspace);
+        }
+    }
+
+    private void createTableAndIndex() {
+        String options = "{\n" +
+                "\t\"metaColumn\":true,\n" +
+                "\t\"fields\":{\n" +
+                "\t\t\"state\":{}\n" +
+                "\t}\n" +
+                "}\n";
+        getSession().execute("USE " + keyspace + ";");
+        getSession().execute("CREATE TABLE PLANS(part int, uid int, state varchar, magic text, PRIMARY KEY(part, uid))");
+        getSession().execute("CREATE CUSTOM INDEX plans_magic ON PLANS(magic) USING 'com.tuplejump.stargate.RowIndex' WITH options ={'sg_options':'" + options + "'}");
+    }
+}